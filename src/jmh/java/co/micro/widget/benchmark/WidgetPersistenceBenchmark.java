@@ -0,0 +1,123 @@
+package co.micro.widget.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import co.micro.widget.WidgetApplication;
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.service.WidgetService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+
+/**
+ * H2 persistence throughput with the default settings and with the {@code high-throughput} profile.
+ * The application runs without the web layer on the H2 repository, backed by a file database in a temporary
+ * directory, and is driven by as many threads as Tomcat would use.
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec -Djmh.args="WidgetPersistenceBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(10)
+public class WidgetPersistenceBenchmark {
+
+    private static final int WIDGETS = 10_000;
+    private static final long AREA = 10_000;
+
+    @Param({"default", "high-throughput"})
+    private String profile;
+
+    private Path directory;
+
+    private ConfigurableApplicationContext context;
+
+    private WidgetService widgetService;
+
+    private List<UUID> widgetIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("widget-benchmark");
+        context = new SpringApplicationBuilder(WidgetApplication.class)
+            .web(WebApplicationType.NONE)
+            .run(
+                "--spring.profiles.active=" + profile,
+                "--widget.repository=h2",
+                "--widget.h2.file=" + directory.resolve("widgets"),
+                "--logging.level.root=WARN");
+        widgetService = context.getBean(WidgetService.class);
+        widgetIds = new ArrayList<>(WIDGETS);
+
+        for (int i = 0; i < WIDGETS; i++) {
+            widgetIds.add(widgetService.createWidget(getCreateRequest()).getWidgetId());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Widget updateWidgetPartially() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        return widgetService.updateWidget(UpdateWidget.builder()
+            .widgetId(widgetIds.get(random.nextInt(widgetIds.size())))
+            .coordinateX((long) random.nextInt((int) AREA))
+            .build());
+    }
+
+    @Benchmark
+    public Widget createWidgetAtTop() {
+        return widgetService.createWidget(getCreateRequest());
+    }
+
+    @Benchmark
+    public Widget getWidget() {
+        return widgetService.getWidget(widgetIds.get(ThreadLocalRandom.current().nextInt(widgetIds.size())));
+    }
+
+    private static CreateWidget getCreateRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        return CreateWidget.builder()
+            .widgetId(UUID.randomUUID())
+            .widgetName("Widget")
+            .coordinateX((long) random.nextInt((int) AREA))
+            .coordinateY((long) random.nextInt((int) AREA))
+            .width(10L)
+            .height(10L)
+            .build();
+    }
+}
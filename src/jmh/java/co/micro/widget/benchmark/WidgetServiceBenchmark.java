@@ -0,0 +1,185 @@
+package co.micro.widget.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import co.micro.widget.WidgetApplication;
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetPage;
+import co.micro.widget.repository.WidgetRepository;
+import co.micro.widget.service.WidgetService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+
+/**
+ * Service hot paths against each repository at several store sizes. Every run starts the application
+ * without the web layer on a private in-memory H2 database and seeds it with {@code widgets} widgets
+ * stacked on Z 0..n-1 at seeded random coordinates.
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec -Djmh.args="WidgetServiceBenchmark.getWidget -p repository=h2"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WidgetServiceBenchmark {
+
+    private static final long AREA = 10_000;
+    private static final long FILTER_MAX = 2_000;
+    private static final int PAGE_LIMIT = 10;
+
+    @Param({"memory", "snapshot", "h2", "columnar"})
+    private String repository;
+
+    @Param({"1000", "100000", "1000000"})
+    private int widgets;
+
+    private ConfigurableApplicationContext context;
+
+    private WidgetService widgetService;
+
+    private WidgetRepository widgetRepository;
+
+    private List<UUID> widgetIds;
+
+    /**
+     * Widgets created by the current iteration, removed again before the next one.
+     */
+    private final ConcurrentLinkedQueue<UUID> createdIds = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Seeds through the repository: the stack is already ordered, so no reordering is needed.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(WidgetApplication.class)
+            .web(WebApplicationType.NONE)
+            .run(
+                "--widget.repository=" + repository,
+                "--spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                "--logging.level.root=WARN");
+        widgetService = context.getBean(WidgetService.class);
+        widgetIds = new ArrayList<>(widgets);
+
+        widgetRepository = context.getBean(WidgetRepository.class);
+        Random random = new Random(widgets);
+
+        for (long z = 0; z < widgets; z++) {
+            UUID widgetId = UUID.randomUUID();
+            widgetRepository.createWidget(getCreateRequest(widgetId, random.nextInt((int) AREA), random.nextInt((int) AREA), z));
+            widgetIds.add(widgetId);
+        }
+    }
+
+    /**
+     * Restores the seeded store, so that every iteration of the create benchmarks starts from {@code widgets}
+     * widgets on Z 0..n-1: the widgets created meanwhile are deleted, and the ones front inserts shifted up are
+     * renumbered back. Without it the store grows through the run and front inserts get slower with it.
+     */
+    @Setup(Level.Iteration)
+    public void resetWidgets() {
+        if (createdIds.isEmpty()) {
+            return;
+        }
+
+        List<UUID> deletedIds = new ArrayList<>(createdIds);
+
+        createdIds.clear();
+        widgetRepository.saveWidgets(deletedIds, List.of());
+        widgetRepository.renumberCoordinateZ(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Widget createWidgetAtTop() {
+        return created(widgetService.createWidget(getCreateRequest(UUID.randomUUID(), 1, 1, null)));
+    }
+
+    /**
+     * Worst case: the whole stack is contiguous from Z 0, so every insert shifts all widgets.
+     */
+    @Benchmark
+    public Widget createWidgetAtFront() {
+        return created(widgetService.createWidget(getCreateRequest(UUID.randomUUID(), 1, 1, 0L)));
+    }
+
+    @Benchmark
+    public Widget updateWidgetPartially() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        return widgetService.updateWidget(UpdateWidget.builder()
+            .widgetId(getRandomWidgetId())
+            .coordinateX((long) random.nextInt((int) AREA))
+            .build());
+    }
+
+    @Benchmark
+    public Widget getWidget() {
+        return widgetService.getWidget(getRandomWidgetId());
+    }
+
+    @Benchmark
+    public List<Widget> getWidgetsFilteredByPage() {
+        return widgetService.getWidgets(3, PAGE_LIMIT, FILTER_MAX, FILTER_MAX, null, null);
+    }
+
+    /**
+     * Size-only filter: no spatial index applies and about one widget in 90 matches.
+     */
+    @Benchmark
+    public List<Widget> getWidgetsFilteredBySize() {
+        return widgetService.getWidgets(3, PAGE_LIMIT, null, null, 50L, null);
+    }
+
+    @Benchmark
+    public WidgetPage getWidgetsFilteredByCursor() {
+        return widgetService.getWidgets(null, PAGE_LIMIT, FILTER_MAX, FILTER_MAX, null, null);
+    }
+
+    private Widget created(Widget widget) {
+        createdIds.add(widget.getWidgetId());
+        return widget;
+    }
+
+    private UUID getRandomWidgetId() {
+        return widgetIds.get(ThreadLocalRandom.current().nextInt(widgetIds.size()));
+    }
+
+    private static CreateWidget getCreateRequest(UUID widgetId, long x, long y, Long z) {
+        return CreateWidget.builder()
+            .widgetId(widgetId)
+            .widgetName("Widget_" + widgetId)
+            .coordinateX(x)
+            .coordinateY(y)
+            .coordinateZ(z)
+            .width(10 + x % 90)
+            .height(10 + y % 90)
+            .updatedAt(0L)
+            .createdAt(0L)
+            .build();
+    }
+}
@@ -0,0 +1,104 @@
+package co.micro.widget.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import co.micro.widget.WidgetApplication;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.repository.WidgetH2ManagerRepository;
+import co.micro.widget.repository.WidgetInMemoryManagerRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+/**
+ * Startup warm-up of the write-behind repository: streaming the H2 table into a fresh in-memory repository.
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec -Djmh.args="WidgetWarmUpBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WidgetWarmUpBenchmark {
+
+    private static final int CHUNK = 10_000;
+    private static final long AREA = 100_000;
+
+    @Param({"100000", "1000000"})
+    private int widgets;
+
+    @Param({"10000"})
+    private int fetchSize;
+
+    private ConfigurableApplicationContext context;
+
+    private WidgetH2ManagerRepository h2Repository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(WidgetApplication.class)
+            .web(WebApplicationType.NONE)
+            .run(
+                "--widget.repository=h2",
+                "--spring.datasource.url=jdbc:h2:mem:warm-up;DB_CLOSE_DELAY=-1",
+                "--logging.level.root=WARN");
+        h2Repository = context.getBean(WidgetH2ManagerRepository.class);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int z = 0; z < widgets; z += CHUNK) {
+            List<Widget> chunk = new ArrayList<>(CHUNK);
+
+            for (int i = z; i < Math.min(widgets, z + CHUNK); i++) {
+                chunk.add(Widget.builder()
+                    .widgetId(UUID.randomUUID())
+                    .widgetName("Widget")
+                    .coordinateX((long) random.nextInt((int) AREA))
+                    .coordinateY((long) random.nextInt((int) AREA))
+                    .coordinateZ((long) i)
+                    .width(10L)
+                    .height(10L)
+                    .createdAt(0L)
+                    .updatedAt(0L)
+                    .build());
+            }
+            h2Repository.saveWidgets(List.of(), chunk);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.getBean(JdbcTemplate.class).execute("DROP TABLE widgets");
+        context.close();
+    }
+
+    @Benchmark
+    public WidgetInMemoryManagerRepository loadWidgets() {
+        WidgetInMemoryManagerRepository repository = new WidgetInMemoryManagerRepository();
+
+        repository.load(h2Repository.loadWidgets(fetchSize));
+        return repository;
+    }
+
+    @Benchmark
+    public List<Widget> readWidgets() {
+        return h2Repository.loadWidgets(fetchSize);
+    }
+}
@@ -0,0 +1,211 @@
+package co.micro.widget.controller;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import co.micro.widget.entity.WidgetChanges;
+import co.micro.widget.service.WidgetService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+
+/**
+ * Pushes widget changes to Server-Sent Events subscribers. Writers take no part in it: one thread polls the store
+ * revision and hands every subscriber that is behind to a sender thread of its own, which reads what changed since
+ * the last revision sent, see {@link WidgetService#getChanges}. A subscriber that lags therefore gets each widget
+ * once however often it changed, and a slow one only holds up itself. One with more than {@code maxPending} widgets
+ * to catch up on, or behind the change log, is sent a {@code reset} event and dropped.
+ */
+@Slf4j
+@Component
+public class WidgetChangeStream {
+
+    @Autowired
+    private WidgetService widgetManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${widget.stream.interval-ms:50}")
+    private long intervalMs;
+
+    @Value("${widget.stream.max-subscribers:256}")
+    private int maxSubscribers;
+
+    @Value("${widget.stream.max-pending:10000}")
+    private int maxPending;
+
+    @Value("${widget.stream.heartbeat-ms:15000}")
+    private long heartbeatMs;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Slots taken, reserved before a subscriber is added and given back when it is removed.
+     */
+    private final AtomicInteger slots = new AtomicInteger();
+
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "widget-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A thread per subscriber being sent to, so a client that stops reading blocks only its own sends
+     * until the write times out.
+     */
+    private ThreadPoolExecutor senders;
+
+    private Counter dropped;
+
+    @PostConstruct
+    public void start() {
+        senders = new ThreadPoolExecutor(0, maxSubscribers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "widget-stream-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("widget.stream.subscribers", slots, AtomicInteger::get)
+            .description("Subscribers to the widget change stream")
+            .register(meterRegistry);
+        dropped = Counter.builder("widget.stream.dropped")
+            .description("Subscribers dropped for lagging behind")
+            .register(meterRegistry);
+
+        poller.scheduleWithFixedDelay(this::poll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        poller.shutdownNow();
+        senders.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    /**
+     * @param since revision to continue after, {@code null} for the changes from now on
+     */
+    SseEmitter subscribe(Long since) {
+        if (slots.getAndUpdate(taken -> taken < maxSubscribers ? taken + 1 : taken) >= maxSubscribers) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many subscribers");
+        }
+
+        Subscriber subscriber = new Subscriber(
+            new SseEmitter(0L),
+            Optional.ofNullable(since).orElseGet(widgetManager::getVersion));
+
+        subscribers.add(subscriber);
+        subscriber.emitter.onCompletion(() -> remove(subscriber));
+        subscriber.emitter.onTimeout(() -> remove(subscriber));
+        subscriber.emitter.onError(e -> remove(subscriber));
+
+        return subscriber.emitter;
+    }
+
+    /**
+     * Frees the slot once, however many of the callbacks and senders get here.
+     */
+    private void remove(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            slots.decrementAndGet();
+        }
+    }
+
+    private void poll() {
+        long revision = widgetManager.getVersion();
+        long heartbeatAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(heartbeatMs);
+
+        for (Subscriber subscriber : subscribers) {
+            if ((subscriber.revision != revision || subscriber.sentAt - heartbeatAt < 0) && subscriber.sending.compareAndSet(false, true)) {
+                try {
+                    senders.execute(() -> send(subscriber));
+                } catch (RejectedExecutionException e) {
+                    subscriber.sending.set(false);
+                }
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber) {
+        try {
+            if (subscriber.revision == widgetManager.getVersion()) {
+                subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+            } else {
+                Optional<WidgetChanges> changes = widgetManager.getChanges(subscriber.revision);
+
+                if (changes.isEmpty()) {
+                    drop(subscriber, "expired");
+                    return;
+                }
+                if (changes.get().getWidgets().size() + changes.get().getDeleted().size() > maxPending) {
+                    drop(subscriber, "lagging");
+                    return;
+                }
+
+                subscriber.emitter.send(SseEmitter.event()
+                    .id(Long.toString(changes.get().getRevision()))
+                    .name("changes")
+                    .data(changes.get(), MediaType.APPLICATION_JSON));
+                subscriber.revision = changes.get().getRevision();
+            }
+            subscriber.sentAt = System.nanoTime();
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Widget change subscriber gone", e);
+            remove(subscriber);
+        } finally {
+            subscriber.sending.set(false);
+        }
+    }
+
+    /**
+     * The client is told to list the widgets again before subscribing from the revision of that listing.
+     */
+    private void drop(Subscriber subscriber, String reason) throws IOException {
+        remove(subscriber);
+        dropped.increment();
+
+        subscriber.emitter.send(SseEmitter.event().name("reset").data(reason));
+        subscriber.emitter.complete();
+    }
+
+    private static final class Subscriber {
+
+        private final SseEmitter emitter;
+
+        /**
+         * Revision the subscriber has been sent everything up to. Written by one sender at a time.
+         */
+        private volatile long revision;
+
+        private volatile long sentAt = System.nanoTime();
+
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        private Subscriber(SseEmitter emitter, long revision) {
+            this.emitter = emitter;
+            this.revision = revision;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package co.micro.widget.controller;
 
+import javax.annotation.PostConstruct;
 import javax.validation.Valid;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -9,17 +11,30 @@ import java.util.UUID;
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetChanges;
+import co.micro.widget.entity.WidgetCursor;
+import co.micro.widget.entity.WidgetPage;
 import co.micro.widget.service.WidgetService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 
 @RestController
@@ -27,10 +42,27 @@ import org.springframework.web.bind.annotation.RestController;
 public class WidgetController {
 
     private static final String CONTENT_TYPE = "application/json";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
 
     @Autowired
     private WidgetService widgetManager;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private WidgetChangeStream changeStream;
+
+    @Value("${widget.page-cache.max-pages:256}")
+    private int maxCachedPages;
+
+    private WidgetPageCache pageCache;
+
+    @PostConstruct
+    void createPageCache() {
+        pageCache = new WidgetPageCache(maxCachedPages);
+    }
+
     @RequestMapping(method = RequestMethod.POST, consumes = CONTENT_TYPE)
     public ResponseEntity<Widget> createWidget(@RequestBody @Valid CreateWidget widget) {
         widget.setWidgetId(UUID.randomUUID());
@@ -49,37 +81,159 @@ public class WidgetController {
         widgetManager.deleteWidget(widgetId);
     }
 
+    /**
+     * Applies creates, updates and deletes together, see {@link WidgetBatch}. Responds with the updated widgets
+     * followed by the created ones.
+     */
+    @RequestMapping(value = "/batch", method = RequestMethod.POST, consumes = CONTENT_TYPE)
+    public ResponseEntity<List<Widget>> applyBatch(@RequestBody @Valid WidgetBatch batch) {
+        Optional.ofNullable(batch.getCreate())
+            .ifPresent(widgets -> widgets.forEach(widget -> widget.setWidgetId(UUID.randomUUID())));
+        return response(widgetManager.applyBatch(batch), HttpStatus.OK);
+    }
+
+    /**
+     * Widgets changed since the store revision, see {@link WidgetChanges}. A revision older than the change log
+     * keeps is answered with 410, and the client has to list everything again. The first revision to ask from
+     * is the ETag of that listing.
+     */
+    @RequestMapping(value = "/changes", method = RequestMethod.GET, produces = CONTENT_TYPE)
+    public ResponseEntity<WidgetChanges> getChanges(@RequestParam long since) {
+        return widgetManager.getChanges(since)
+            .map(changes -> response(changes, HttpStatus.OK))
+            .orElseGet(() -> ResponseEntity.status(HttpStatus.GONE).build());
+    }
+
+    /**
+     * Streams the changes as Server-Sent Events, see {@link WidgetChangeStream}: {@code changes} events with the
+     * body of {@link #getChanges} and its revision as event id. Reconnecting with {@code Last-Event-ID}, or
+     * {@code since}, continues after that revision; without either the stream starts from now.
+     */
+    @RequestMapping(value = "/changes/stream", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(
+        @RequestParam(required = false) Long since,
+        @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+
+        return changeStream.subscribe(Optional.ofNullable(lastEventId).orElse(since));
+    }
+
+    /**
+     * Reads carry the store revision as ETag: a matching {@code If-None-Match} gets 304 without reading anything.
+     */
     @RequestMapping(value = "/{widgetId}", method = RequestMethod.GET, produces = CONTENT_TYPE)
-    public ResponseEntity<Widget> getWidget(@PathVariable UUID widgetId) {
-        return response(widgetManager.getWidget(widgetId), HttpStatus.OK);
+    public ResponseEntity<Widget> getWidget(@PathVariable UUID widgetId, WebRequest request) {
+        String eTag = getETag(widgetManager.getVersion());
+
+        if (request.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+
+        return ResponseEntity.ok().eTag(eTag).body(widgetManager.getWidget(widgetId));
     }
 
+    /**
+     * Lists widgets ordered by Z. Without {@code page} the listing is keyset based: a full page carries the
+     * {@value #NEXT_CURSOR_HEADER} header, to be passed back as {@code cursor} for the next one.
+     * Listings are tagged and answered with 304 like single widgets, and served serialized from
+     * {@link WidgetPageCache} while the store version stays the same.
+     */
     @RequestMapping(method = RequestMethod.GET, produces = CONTENT_TYPE)
-    public ResponseEntity<List<Widget>> getWidgets(
+    public ResponseEntity<byte[]> getWidgets(
         @RequestParam(required = false) String page,
+        @RequestParam(required = false) String cursor,
         @RequestParam(required = false) String limit,
         @RequestParam(required = false) String maxCoordinateX,
         @RequestParam(required = false) String maxCoordinateY,
         @RequestParam(required = false) String width,
-        @RequestParam(required = false) String height) {
-
-        return response(widgetManager.getWidgets(
-            Optional.ofNullable(page)
-                .map(Integer::valueOf)
-                .map(v -> Objects.equals(v, 0) ? 1 : v)
-                .orElse(1),
-            Optional.ofNullable(limit).map(Integer::valueOf).orElse(0),
+        @RequestParam(required = false) String height,
+        WebRequest request) throws JsonProcessingException {
+
+        getNonNegative("page", page);
+        getNonNegative("limit", limit);
+
+        long version = widgetManager.getVersion();
+        String eTag = getETag(version);
+
+        if (request.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+
+        String query = Arrays.asList(page, cursor, limit, maxCoordinateX, maxCoordinateY, width, height).toString();
+        WidgetPageCache.Page cached = pageCache.get(query, version);
+
+        if (Objects.isNull(cached)) {
+            cached = readPage(version, page, cursor, limit, maxCoordinateX, maxCoordinateY, width, height);
+            pageCache.put(query, cached);
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+
+        Optional.ofNullable(cached.getNextCursor())
+            .ifPresent(next -> headers.set(NEXT_CURSOR_HEADER, next));
+
+        return ResponseEntity.ok()
+            .headers(headers)
+            .eTag(eTag)
+            .contentType(MediaType.APPLICATION_JSON_UTF8)
+            .body(cached.getBody());
+    }
+
+    private WidgetPageCache.Page readPage(long version, String page, String cursor, String limit, String maxCoordinateX,
+                                          String maxCoordinateY, String width, String height) throws JsonProcessingException {
+        if (Objects.nonNull(cursor) || Objects.isNull(page)) {
+            WidgetPage result = widgetManager.getWidgets(
+                Optional.ofNullable(cursor).map(WidgetCursor::decode).orElse(null),
+                getNonNegative("limit", limit).orElse(0),
+                getWhenDefined(maxCoordinateX),
+                getWhenDefined(maxCoordinateY),
+                getWhenDefined(width),
+                getWhenDefined(height));
+
+            return new WidgetPageCache.Page(
+                version,
+                objectMapper.writeValueAsBytes(result.getWidgets()),
+                Optional.ofNullable(result.getNextCursor()).map(WidgetCursor::encode).orElse(null));
+        }
+
+        List<Widget> widgets = widgetManager.getWidgets(
+            getNonNegative("page", page).map(v -> Objects.equals(v, 0) ? 1 : v).orElse(1),
+            getNonNegative("limit", limit).orElse(0),
             getWhenDefined(maxCoordinateX),
             getWhenDefined(maxCoordinateY),
             getWhenDefined(width),
             getWhenDefined(height)
-        ), HttpStatus.OK);
+        );
+
+        return new WidgetPageCache.Page(version, objectMapper.writeValueAsBytes(widgets), null);
+    }
+
+    /**
+     * Revisions carry a random epoch of the run, so an ETag of an earlier run is all but certain not to match.
+     */
+    private static String getETag(long version) {
+        return "\"" + version + "\"";
     }
 
     private static <T> ResponseEntity<T> response(T result, HttpStatus code) {
         return new ResponseEntity<>(result, code);
     }
 
+    /**
+     * @return the parameter when given, answering 400 unless it is a number of at least 0
+     */
+    private static Optional<Integer> getNonNegative(String name, String v) {
+        try {
+            Optional<Integer> value = Optional.ofNullable(v).map(Integer::valueOf);
+
+            if (value.isPresent() && value.get() < 0) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("%s must not be negative", name));
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("%s must be a number", name));
+        }
+    }
+
     private static Long getWhenDefined(String v) {
         return Objects.nonNull(v) ? Long.valueOf(v) : null;
     }
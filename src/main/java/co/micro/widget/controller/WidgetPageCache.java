@@ -0,0 +1,64 @@
+package co.micro.widget.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * Serialized listings by query, each tagged with the store version it was read at. A page is served only while
+ * the store is still at that version, so a write invalidates every page at once; the least recently used pages
+ * are dropped past {@code maxPages}.
+ */
+final class WidgetPageCache {
+
+    private final Map<String, Page> pages;
+
+    WidgetPageCache(int maxPages) {
+        this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * @return the page read at the version, or {@code null}
+     */
+    synchronized Page get(String query, long version) {
+        Page page = pages.get(query);
+
+        return Objects.nonNull(page) && page.version == version ? page : null;
+    }
+
+    /**
+     * Keeps the page unless a page read at a later version is already there.
+     */
+    synchronized void put(String query, Page page) {
+        pages.merge(query, page, (cached, read) -> read.version >= cached.version ? read : cached);
+    }
+
+    static final class Page {
+
+        private final long version;
+
+        private final byte[] body;
+
+        private final String nextCursor;
+
+        Page(long version, byte[] body, String nextCursor) {
+            this.version = version;
+            this.body = body;
+            this.nextCursor = nextCursor;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        String getNextCursor() {
+            return nextCursor;
+        }
+    }
+}
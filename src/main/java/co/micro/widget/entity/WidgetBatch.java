@@ -0,0 +1,28 @@
+package co.micro.widget.entity;
+
+import javax.validation.Valid;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.With;
+
+
+/**
+ * Writes applied together: deletes first, then updates (keyed by widget id) in order, then creates in order.
+ */
+@Data
+@With
+@Builder
+public class WidgetBatch {
+
+    @Valid
+    private List<CreateWidget> create;
+
+    @Valid
+    private Map<UUID, UpdateWidget> update;
+
+    private List<UUID> delete;
+}
@@ -0,0 +1,25 @@
+package co.micro.widget.entity;
+
+import java.util.List;
+import java.util.UUID;
+
+import lombok.Builder;
+import lombok.Data;
+
+
+@Data
+@Builder
+public class WidgetChanges {
+
+    /**
+     * Store revision the changes go up to, to be passed back as {@code since} for the next ones.
+     */
+    private Long revision;
+
+    /**
+     * Widgets created or updated since, shifted ones included, as currently stored and ordered by Z.
+     */
+    private List<Widget> widgets;
+
+    private List<UUID> deleted;
+}
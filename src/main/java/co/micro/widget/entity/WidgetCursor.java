@@ -0,0 +1,51 @@
+package co.micro.widget.entity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+import co.micro.widget.exception.WidgetException;
+import lombok.Builder;
+import lombok.Data;
+
+
+/**
+ * Keyset position of a widget listing: the last widget returned and its stored coordinate Z.
+ * Clients get it as an opaque string.
+ */
+@Data
+@Builder
+public class WidgetCursor {
+
+    private static final String SEPARATOR = ":";
+
+    private Long coordinateZ;
+
+    private UUID widgetId;
+
+    public static WidgetCursor of(Widget widget) {
+        return WidgetCursor.builder()
+            .coordinateZ(widget.getCoordinateZ())
+            .widgetId(widget.getWidgetId())
+            .build();
+    }
+
+    public static WidgetCursor decode(String value) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8).split(SEPARATOR, 2);
+
+            return WidgetCursor.builder()
+                .coordinateZ(Long.valueOf(parts[0]))
+                .widgetId(UUID.fromString(parts[1]))
+                .build();
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw WidgetException.invalidCursor(value);
+        }
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder()
+            .withoutPadding()
+            .encodeToString((coordinateZ + SEPARATOR + widgetId).getBytes(StandardCharsets.UTF_8));
+    }
+}
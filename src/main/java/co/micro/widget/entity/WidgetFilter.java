@@ -0,0 +1,52 @@
+package co.micro.widget.entity;
+
+import java.util.Objects;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.With;
+
+
+@Data
+@With
+@Builder
+public class WidgetFilter {
+
+    private Long maxCoordinateX;
+
+    private Long maxCoordinateY;
+
+    private Long width;
+
+    private Long height;
+
+    public boolean isEmpty() {
+        return Objects.isNull(maxCoordinateX) && Objects.isNull(maxCoordinateY) && Objects.isNull(width) && Objects.isNull(height);
+    }
+
+    /**
+     * @return whether the filter limits coordinates, so that a spatial index can narrow the candidates
+     */
+    public boolean isBounded() {
+        return Objects.nonNull(maxCoordinateX) || Objects.nonNull(maxCoordinateY);
+    }
+
+    public boolean test(Widget widget) {
+        if (Objects.nonNull(maxCoordinateY) && (widget.getCoordinateY() < 0 || widget.getCoordinateY() > maxCoordinateY)) {
+            return false;
+        }
+        if (Objects.nonNull(maxCoordinateX) && (widget.getCoordinateX() < 0 || widget.getCoordinateX() > maxCoordinateX)) {
+            return false;
+        }
+        if (Objects.nonNull(width) && !Objects.equals(widget.getWidth(), width)) {
+            return false;
+        }
+        if (Objects.nonNull(height) && !Objects.equals(widget.getHeight(), height)) {
+            return false;
+        }
+        if (Objects.nonNull(maxCoordinateY) && Objects.nonNull(height) && widget.getCoordinateY() + widget.getHeight() / 2.0 > maxCoordinateY) {
+            return false;
+        }
+        return Objects.isNull(maxCoordinateX) || Objects.isNull(width) || widget.getCoordinateX() + widget.getWidth() / 2.0 <= maxCoordinateX;
+    }
+}
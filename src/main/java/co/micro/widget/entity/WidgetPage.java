@@ -0,0 +1,19 @@
+package co.micro.widget.entity;
+
+import java.util.List;
+
+import lombok.Builder;
+import lombok.Data;
+
+
+@Data
+@Builder
+public class WidgetPage {
+
+    private List<Widget> widgets;
+
+    /**
+     * Position to continue from, {@code null} on the last page.
+     */
+    private WidgetCursor nextCursor;
+}
@@ -11,4 +11,8 @@ public class WidgetException extends RuntimeException {
     public static WidgetException widgetNotFound(UUID widgetId) {
         return new WidgetException(String.format("Widget not found! [id=%s]", widgetId));
     }
+
+    public static WidgetException invalidCursor(String cursor) {
+        return new WidgetException(String.format("Invalid cursor! [cursor=%s]", cursor));
+    }
 }
@@ -0,0 +1,69 @@
+package co.micro.widget.metrics;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import co.micro.widget.repository.WidgetMetrics;
+import co.micro.widget.repository.WidgetRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+
+/**
+ * Widget meters, exposed with the rest on {@code /actuator/prometheus}:
+ * <ul>
+ * <li>{@code widget.operation}: operations of {@link co.micro.widget.service.WidgetManagerService}</li>
+ * <li>{@code widget.lock.wait}, {@code widget.lock.hold}: Z order and widget locks of the service</li>
+ * <li>{@code widget.shift.cascade}: widgets shifted by a single create or move</li>
+ * <li>{@code widget.repository}: H2 repository calls, see {@link WidgetRepositoryMetrics}</li>
+ * <li>{@code widget.count}: stored widgets</li>
+ * </ul>
+ */
+@Configuration
+public class WidgetMetricsConfiguration {
+
+    private static final Set<String> HISTOGRAMS = Set.of(
+        "widget.operation", "widget.lock.wait", "widget.lock.hold", "widget.shift.cascade");
+
+    /**
+     * Publishes histogram buckets for latencies and cascade lengths. Timer buckets start at a microsecond,
+     * in-memory operations and uncontended locks finish well below the default of a millisecond.
+     */
+    @Bean
+    public MeterFilter widgetHistograms() {
+        return new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (!HISTOGRAMS.contains(id.getName())) {
+                    return config;
+                }
+
+                boolean timer = id.getType() == Meter.Type.TIMER;
+
+                return DistributionStatisticConfig.builder()
+                    .percentilesHistogram(true)
+                    .minimumExpectedValue(timer ? TimeUnit.MICROSECONDS.toNanos(1) : 1L)
+                    .maximumExpectedValue(timer ? TimeUnit.SECONDS.toNanos(10) : 1_000_000L)
+                    .build()
+                    .merge(config);
+            }
+        };
+    }
+
+    @Bean
+    public MeterBinder widgetRepositoryMeters() {
+        return WidgetMetrics::bindTo;
+    }
+
+    @Bean
+    public MeterBinder widgetCount(WidgetRepository widgetRepository) {
+        return registry -> Gauge.builder("widget.count", widgetRepository, WidgetRepository::countWidgets)
+            .description("Stored widgets")
+            .register(registry);
+    }
+}
@@ -0,0 +1,71 @@
+package co.micro.widget.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import co.micro.widget.trace.WidgetQueryEvent;
+import co.micro.widget.trace.WidgetTrace;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+
+/**
+ * Times every call made to the H2 repository bean through {@link co.micro.widget.repository.WidgetRepository},
+ * tagged by method, and records it as a {@link WidgetQueryEvent}. The in-memory stores are left out: a proxy
+ * call costs several times an in-memory read, and the service operation timers already cover them. Calls the
+ * repository makes on itself are not counted; calls from other beans are, so the write-behind flushes show up
+ * as {@code saveWidgets}.
+ */
+@Aspect
+@Component
+public class WidgetRepositoryMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Class<?>, Map<String, Timer>> timers = new ConcurrentHashMap<>();
+
+    /**
+     * Capability checks such as {@code isThreadSafe()} are left out.
+     */
+    @Around("execution(* co.micro.widget.repository.WidgetRepository.*(..)) && !execution(boolean *()) " +
+        "&& within(co.micro.widget.repository.WidgetH2ManagerRepository)")
+    public Object timeRepository(ProceedingJoinPoint joinPoint) throws Throwable {
+        Class<?> repository = joinPoint.getTarget().getClass();
+        String method = joinPoint.getSignature().getName();
+        WidgetQueryEvent event = new WidgetQueryEvent();
+        long start = System.nanoTime();
+        Object result = null;
+
+        event.begin();
+        try {
+            result = joinPoint.proceed();
+            return result;
+        } finally {
+            getTimer(repository, method).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            event.end();
+            if (event.shouldCommit()) {
+                event.repository = repository.getSimpleName();
+                event.method = method;
+                event.rows = WidgetTrace.countWidgets(result);
+                event.commit();
+            }
+        }
+    }
+
+    private Timer getTimer(Class<?> repository, String method) {
+        return timers
+            .computeIfAbsent(repository, type -> new ConcurrentHashMap<>())
+            .computeIfAbsent(method, name -> Timer.builder("widget.repository")
+                .description("Widget repository calls")
+                .tag("repository", repository.getSimpleName())
+                .tag("method", name)
+                .register(meterRegistry));
+    }
+}
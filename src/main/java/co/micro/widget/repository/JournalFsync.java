@@ -0,0 +1,23 @@
+package co.micro.widget.repository;
+
+
+/**
+ * When {@link WidgetJournalManagerRepository} forces its log to disk, configured by {@code widget.journal.fsync}.
+ */
+public enum JournalFsync {
+
+    /**
+     * Every write returns once its record is on disk. Writers waiting together share one force (group commit).
+     */
+    ALWAYS,
+
+    /**
+     * The log is forced every {@code widget.journal.fsync-interval-ms}; a crash loses at most that much.
+     */
+    INTERVAL,
+
+    /**
+     * The log is forced only when a segment is closed; the operating system writes it back in between.
+     */
+    NEVER
+}
@@ -0,0 +1,174 @@
+package co.micro.widget.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.exception.WidgetException;
+import lombok.Getter;
+
+
+/**
+ * Outcome of a {@link WidgetBatch} against the stored widgets, computed in memory with a single reorder pass.
+ * Deleted widgets and widgets moved to a new coordinate Z vacate their slots first; then the moves and the creates
+ * are inserted in order, each shifting the contiguous run at its Z one step up as single writes do.
+ * Only widgets whose state changes are written.
+ */
+@Getter
+final class WidgetBatchPlan {
+
+    private final List<UUID> deletedIds;
+
+    private final List<Widget> widgets;
+
+    /**
+     * Updated widgets followed by the created ones, in request order.
+     */
+    private final List<Widget> results;
+
+    private WidgetBatchPlan(List<UUID> deletedIds, List<Widget> widgets, List<Widget> results) {
+        this.deletedIds = deletedIds;
+        this.widgets = widgets;
+        this.results = results;
+    }
+
+    static WidgetBatchPlan of(Collection<Widget> stored, WidgetBatch batch) {
+        Map<UUID, Widget> widgets = stored.stream()
+            .collect(Collectors.toMap(Widget::getWidgetId, Function.identity()));
+        List<UUID> deletedIds = Optional.ofNullable(batch.getDelete()).orElse(List.of());
+        Map<UUID, Widget> written = new LinkedHashMap<>();
+        Set<UUID> moved = new LinkedHashSet<>();
+
+        for (UUID widgetId : deletedIds) {
+            if (Objects.isNull(widgets.remove(widgetId))) {
+                throw WidgetException.widgetNotFound(widgetId);
+            }
+        }
+        Optional.ofNullable(batch.getUpdate()).orElse(Map.of()).forEach((widgetId, request) -> {
+            Widget widget = Optional.ofNullable(widgets.get(widgetId))
+                .orElseThrow(() -> WidgetException.widgetNotFound(widgetId));
+
+            written.put(widgetId, applyChanges(widget, request));
+            if (Objects.nonNull(request.getCoordinateZ())) {
+                moved.add(widgetId);
+            }
+        });
+
+        Stack stack = new Stack(widgets.values().stream()
+            .filter(widget -> !moved.contains(widget.getWidgetId()))
+            .sorted(Comparator.comparingLong(Widget::getCoordinateZ))
+            .collect(Collectors.toList()));
+
+        moved.forEach(widgetId -> stack.insert(written.get(widgetId).getCoordinateZ(), widgetId));
+        for (CreateWidget request : Optional.ofNullable(batch.getCreate()).orElse(List.of())) {
+            Widget widget = WidgetConversions.convertToWidget(request);
+
+            stack.insert(Optional.ofNullable(widget.getCoordinateZ()).orElseGet(stack::top), widget.getWidgetId());
+            written.put(widget.getWidgetId(), widget);
+        }
+
+        List<Widget> changed = new ArrayList<>();
+
+        stack.forEach((widgetId, z) -> {
+            Widget widget = written.getOrDefault(widgetId, widgets.get(widgetId));
+
+            if (written.containsKey(widgetId) || !Objects.equals(widget.getCoordinateZ(), z)) {
+                changed.add(widget.withCoordinateZ(z));
+                written.replace(widgetId, widget.withCoordinateZ(z));
+            }
+        });
+
+        return new WidgetBatchPlan(deletedIds, changed, new ArrayList<>(written.values()));
+    }
+
+    private static Widget applyChanges(Widget widget, UpdateWidget request) {
+        return Widget.builder()
+            .widgetId(widget.getWidgetId())
+            .widgetName(applyFirstNonNullable(request.getWidgetName(), widget.getWidgetName()))
+            .coordinateX(applyFirstNonNullable(request.getCoordinateX(), widget.getCoordinateX()))
+            .coordinateY(applyFirstNonNullable(request.getCoordinateY(), widget.getCoordinateY()))
+            .coordinateZ(applyFirstNonNullable(request.getCoordinateZ(), widget.getCoordinateZ()))
+            .width(applyFirstNonNullable(request.getWidth(), widget.getWidth()))
+            .height(applyFirstNonNullable(request.getHeight(), widget.getHeight()))
+            .updatedAt(applyFirstNonNullable(request.getUpdatedAt(), widget.getUpdatedAt()))
+            .createdAt(widget.getCreatedAt())
+            .build();
+    }
+
+    private static <V> V applyFirstNonNullable(V v1, V v2) {
+        return Optional.ofNullable(v1).orElse(v2);
+    }
+
+    /**
+     * Z order as maximal runs of contiguous coordinate Z keyed by their first Z, so that an insert shifts
+     * the rest of its run by moving list elements instead of rewriting keys.
+     */
+    private static final class Stack {
+
+        private final NavigableMap<Long, List<UUID>> runs = new TreeMap<>();
+
+        private Stack(List<Widget> ordered) {
+            for (Widget widget : ordered) {
+                Map.Entry<Long, List<UUID>> last = runs.lastEntry();
+
+                if (Objects.nonNull(last) && last.getKey() + last.getValue().size() == widget.getCoordinateZ()) {
+                    last.getValue().add(widget.getWidgetId());
+                } else {
+                    runs.put(widget.getCoordinateZ(), new ArrayList<>(List.of(widget.getWidgetId())));
+                }
+            }
+        }
+
+        private void insert(long z, UUID widgetId) {
+            Map.Entry<Long, List<UUID>> run = runs.floorEntry(z);
+            long start = z;
+            List<UUID> ids;
+
+            if (Objects.nonNull(run) && z <= run.getKey() + run.getValue().size()) {
+                start = run.getKey();
+                ids = run.getValue();
+                ids.add((int) (z - start), widgetId);
+            } else {
+                ids = new ArrayList<>(List.of(widgetId));
+                runs.put(z, ids);
+            }
+
+            List<UUID> next = runs.remove(start + ids.size());
+
+            if (Objects.nonNull(next)) {
+                ids.addAll(next);
+            }
+        }
+
+        private long top() {
+            Map.Entry<Long, List<UUID>> last = runs.lastEntry();
+
+            return Objects.nonNull(last) ? last.getKey() + last.getValue().size() : 0;
+        }
+
+        private void forEach(BiConsumer<UUID, Long> action) {
+            runs.forEach((start, ids) -> {
+                for (int i = 0; i < ids.size(); i++) {
+                    action.accept(ids.get(i), start + i);
+                }
+            });
+        }
+    }
+}
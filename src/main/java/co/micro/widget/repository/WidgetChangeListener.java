@@ -0,0 +1,51 @@
+package co.micro.widget.repository;
+
+import java.util.Collection;
+import java.util.UUID;
+
+
+/**
+ * Told what each write of a repository changed, once the change is visible, on the writing thread.
+ * A write is reported by one call, however many widgets it moves.
+ */
+public interface WidgetChangeListener {
+
+    WidgetChangeListener NONE = new WidgetChangeListener() {
+        @Override
+        public void changed(Collection<UUID> widgetIds) {
+        }
+
+        @Override
+        public void moved(long fromZ, long toZ) {
+        }
+    };
+
+    /**
+     * @param widgetIds widgets written or deleted by the write
+     */
+    void changed(Collection<UUID> widgetIds);
+
+    /**
+     * Widgets were moved by a shift or a renumbering and now lie between the coordinates Z, both included.
+     * Every widget in the range may have moved; a widget that has left it since has been reported again.
+     */
+    void moved(long fromZ, long toZ);
+
+    default WidgetChangeListener andThen(WidgetChangeListener next) {
+        WidgetChangeListener first = this;
+
+        return new WidgetChangeListener() {
+            @Override
+            public void changed(Collection<UUID> widgetIds) {
+                first.changed(widgetIds);
+                next.changed(widgetIds);
+            }
+
+            @Override
+            public void moved(long fromZ, long toZ) {
+                first.moved(fromZ, toZ);
+                next.moved(fromZ, toZ);
+            }
+        };
+    }
+}
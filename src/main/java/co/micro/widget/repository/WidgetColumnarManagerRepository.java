@@ -0,0 +1,222 @@
+package co.micro.widget.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+
+/**
+ * In-memory repository over {@link WidgetColumns}: a few dozen bytes of primitive arrays per widget instead of
+ * a {@link Widget} object graph in several maps. Filters are evaluated on the columns, and results are read in
+ * Z order without sorting. Writes run exclusively, reads share the lock.
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "widget.repository", havingValue = "columnar")
+public class WidgetColumnarManagerRepository implements WidgetRepository {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final WidgetColumns columns = new WidgetColumns();
+
+    /**
+     * Told every write before the write lock is released.
+     */
+    private volatile WidgetChangeListener changeListener = WidgetChangeListener.NONE;
+
+    @Override
+    public Widget createWidget(CreateWidget request) {
+        Widget widget = WidgetConversions.convertToWidget(request);
+
+        return setWriteLock(() -> columns.get(put(widget)));
+    }
+
+    @Override
+    public Widget updateWidget(UpdateWidget request) {
+        Widget widget = WidgetConversions.convertToWidget(request);
+
+        return setWriteLock(() -> {
+            int slot = columns.find(widget.getWidgetId());
+            Widget previous = slot >= 0 ? columns.get(slot) : null;
+
+            return columns.get(put(WidgetConversions.merge(previous, widget)));
+        });
+    }
+
+    @Override
+    public void deleteWidget(UUID widgetId) {
+        setWriteLock(() -> remove(widgetId));
+    }
+
+    @Override
+    public void addChangeListener(WidgetChangeListener listener) {
+        changeListener = changeListener.andThen(listener);
+    }
+
+    @Override
+    public Optional<Widget> getWidget(UUID widgetId) {
+        return setReadLock(() -> {
+            int slot = columns.find(widgetId);
+
+            return slot >= 0 ? Optional.of(columns.get(slot)) : Optional.empty();
+        });
+    }
+
+    @Override
+    public List<Widget> getWidgets() {
+        return setReadLock(() -> columns.collect(0, 0, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public List<Widget> getWidgets(Long startFromZ) {
+        return setReadLock(() -> columns.collect(columns.lowerBound(startFromZ), 0, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter) {
+        return findInArea(filter, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter, long offset, int limit) {
+        return setReadLock(() -> find(0, filter, offset, limit));
+    }
+
+    @Override
+    public List<Widget> findInAreaAfter(WidgetFilter filter, Long afterZ, int limit) {
+        return setReadLock(() -> find(Objects.isNull(afterZ) ? 0 : columns.upperBound(afterZ), filter, 0, limit));
+    }
+
+    @Override
+    public List<Widget> getWidgets(long offset, int limit) {
+        return setReadLock(() -> columns.collect(0, offset, limit));
+    }
+
+    @Override
+    public long countWidgets() {
+        return setReadLock(() -> (long) columns.size());
+    }
+
+    @Override
+    public long countWidgetsBelow(Long z) {
+        return setReadLock(() -> (long) columns.lowerBound(z));
+    }
+
+    @Override
+    public Optional<Widget> getWidgetMaxByCoordinateZ() {
+        return setReadLock(() -> columns.size() > 0 ?
+            Optional.of(columns.get(columns.slotAt(columns.size() - 1))) :
+            Optional.empty());
+    }
+
+    @Override
+    public Widget createWidgetAt(CreateWidget request) {
+        return setWriteLock(() -> WidgetRepository.super.createWidgetAt(request));
+    }
+
+    @Override
+    public Widget updateWidgetAt(UpdateWidget request) {
+        return setWriteLock(() -> WidgetRepository.super.updateWidgetAt(request));
+    }
+
+    @Override
+    public List<Widget> applyBatch(WidgetBatch batch) {
+        return setWriteLock(() -> WidgetRepository.super.applyBatch(batch));
+    }
+
+    @Override
+    public void saveWidgets(Collection<UUID> deletedIds, Collection<Widget> widgets) {
+        setWriteLock(() -> {
+            List<UUID> removedIds = deletedIds.stream().filter(columns::remove).collect(Collectors.toList());
+
+            widgets.forEach(columns::put);
+            changeListener.changed(Stream.concat(removedIds.stream(), widgets.stream().map(Widget::getWidgetId))
+                .collect(Collectors.toList()));
+            return widgets.size();
+        });
+    }
+
+    @Override
+    public int shiftCoordinateZ(Long startFromZ, UUID excludedWidgetId) {
+        return setWriteLock(() -> {
+            int shifted = columns.shift(startFromZ,
+                Objects.isNull(excludedWidgetId) ? -1 : columns.find(excludedWidgetId));
+
+            if (shifted > 0) {
+                changeListener.moved(startFromZ + 1, startFromZ + shifted);
+            }
+            return shifted;
+        });
+    }
+
+    @Override
+    public void renumberCoordinateZ(long step) {
+        setWriteLock(() -> {
+            columns.renumber(step);
+            if (columns.size() > 0) {
+                changeListener.moved(0, (columns.size() - 1) * step);
+            }
+            return step;
+        });
+    }
+
+    private int put(Widget widget) {
+        int slot = columns.put(widget);
+
+        changeListener.changed(List.of(widget.getWidgetId()));
+        return slot;
+    }
+
+    private boolean remove(UUID widgetId) {
+        boolean removed = columns.remove(widgetId);
+
+        if (removed) {
+            changeListener.changed(List.of(widgetId));
+        }
+        return removed;
+    }
+
+    private List<Widget> find(int fromPosition, WidgetFilter filter, long offset, int limit) {
+        return filter.isEmpty() ?
+            columns.collect(fromPosition, offset, limit) :
+            columns.find(fromPosition, filter, offset, limit);
+    }
+
+    private <R> R setReadLock(Supplier<R> readWidgets) {
+        lock.readLock().lock();
+        try {
+            return readWidgets.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private <R> R setWriteLock(Supplier<R> manageWidgets) {
+        lock.writeLock().lock();
+        try {
+            return manageWidgets.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
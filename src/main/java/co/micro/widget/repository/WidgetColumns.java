@@ -0,0 +1,540 @@
+package co.micro.widget.repository;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.trace.WidgetScanEvent;
+
+
+/**
+ * Widgets stored column by column in primitive arrays, one slot per widget: the id as two longs, the numeric fields
+ * as longs with {@link #NULL} for a missing value, and the name as an interned string shared by equal names.
+ * Freed slots are reused. Ids are found through an open-addressing table of slots, and {@link #order} keeps the
+ * slots sorted by coordinate Z, so Z order is read without sorting (a page stops at its last widget instead of
+ * selecting the top of a sorted result) and a shift only rewrites Z values.
+ * {@link Widget} objects are built only when a widget is returned.
+ * <p>
+ * Not thread-safe: {@link WidgetColumnarManagerRepository} guards it.
+ */
+final class WidgetColumns {
+
+    static final long NULL = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int PAGE_CAPACITY = 64;
+
+    private static final int MIN_WALK = 1024;
+
+    /**
+     * Slots scanned by one fork-join task; a multiple of 64, so tasks write disjoint words of the match bitmap.
+     */
+    private static final int SCAN_CHUNK = 1 << 15;
+
+    private long[] idMost = new long[INITIAL_CAPACITY];
+
+    private long[] idLeast = new long[INITIAL_CAPACITY];
+
+    private long[] coordinateX = new long[INITIAL_CAPACITY];
+
+    private long[] coordinateY = new long[INITIAL_CAPACITY];
+
+    private long[] coordinateZ = new long[INITIAL_CAPACITY];
+
+    private long[] width = new long[INITIAL_CAPACITY];
+
+    private long[] height = new long[INITIAL_CAPACITY];
+
+    private long[] createdAt = new long[INITIAL_CAPACITY];
+
+    private long[] updatedAt = new long[INITIAL_CAPACITY];
+
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    private final BitSet live = new BitSet(INITIAL_CAPACITY);
+
+    /**
+     * Slots below this have been used at least once.
+     */
+    private int used;
+
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+    private int freeCount;
+
+    /**
+     * Live slots ordered by coordinate Z; widgets with the same Z keep their insertion order.
+     */
+    private int[] order = new int[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * Open-addressing table with linear probing: {@code slot + 1}, or 0 for an empty bucket.
+     */
+    private int[] ids = new int[INITIAL_CAPACITY * 2];
+
+    private final Map<String, WeakReference<String>> internedNames = new WeakHashMap<>();
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return slot of the widget, -1 if it is not stored
+     */
+    int find(UUID widgetId) {
+        long most = widgetId.getMostSignificantBits();
+        long least = widgetId.getLeastSignificantBits();
+        int mask = ids.length - 1;
+
+        for (int i = bucket(most, least); ids[i] != 0; i = (i + 1) & mask) {
+            int slot = ids[i] - 1;
+
+            if (idMost[slot] == most && idLeast[slot] == least) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Stores the widget in its slot, or in a new one if it is not stored yet.
+     *
+     * @return slot of the widget
+     */
+    int put(Widget widget) {
+        int slot = find(widget.getWidgetId());
+        long z = valueOf(widget.getCoordinateZ());
+
+        if (slot < 0) {
+            slot = allocate();
+            idMost[slot] = widget.getWidgetId().getMostSignificantBits();
+            idLeast[slot] = widget.getWidgetId().getLeastSignificantBits();
+            indexId(slot);
+            coordinateZ[slot] = z;
+            insertOrder(slot);
+        } else if (coordinateZ[slot] != z) {
+            removeOrder(slot);
+            coordinateZ[slot] = z;
+            insertOrder(slot);
+        }
+
+        coordinateX[slot] = valueOf(widget.getCoordinateX());
+        coordinateY[slot] = valueOf(widget.getCoordinateY());
+        width[slot] = valueOf(widget.getWidth());
+        height[slot] = valueOf(widget.getHeight());
+        createdAt[slot] = valueOf(widget.getCreatedAt());
+        updatedAt[slot] = valueOf(widget.getUpdatedAt());
+        names[slot] = intern(widget.getWidgetName());
+
+        return slot;
+    }
+
+    boolean remove(UUID widgetId) {
+        int slot = find(widgetId);
+
+        if (slot < 0) {
+            return false;
+        }
+
+        removeOrder(slot);
+        unindexId(slot);
+        live.clear(slot);
+        names[slot] = null;
+        freeSlots[freeCount++] = slot;
+
+        return true;
+    }
+
+    UUID id(int slot) {
+        return new UUID(idMost[slot], idLeast[slot]);
+    }
+
+    Widget get(int slot) {
+        return Widget.builder()
+            .widgetId(id(slot))
+            .widgetName(names[slot])
+            .coordinateX(boxed(coordinateX[slot]))
+            .coordinateY(boxed(coordinateY[slot]))
+            .coordinateZ(boxed(coordinateZ[slot]))
+            .width(boxed(width[slot]))
+            .height(boxed(height[slot]))
+            .createdAt(boxed(createdAt[slot]))
+            .updatedAt(boxed(updatedAt[slot]))
+            .build();
+    }
+
+    /**
+     * @return slot at the position in Z order
+     */
+    int slotAt(int position) {
+        return order[position];
+    }
+
+    /**
+     * @return position in Z order of the first widget with coordinate Z at or above {@code z}
+     */
+    int lowerBound(long z) {
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (coordinateZ[order[middle]] < z) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @return position in Z order of the first widget with coordinate Z above {@code z}
+     */
+    int upperBound(long z) {
+        return z == Long.MAX_VALUE ? size : lowerBound(z + 1);
+    }
+
+    /**
+     * Moves the contiguous run starting at {@code startFromZ} one step up, stopping at the excluded slot.
+     * The order of the slots does not change.
+     *
+     * @return number of shifted widgets
+     */
+    int shift(long startFromZ, int excludedSlot) {
+        int position = lowerBound(startFromZ);
+        long z = startFromZ;
+        int shifted = 0;
+
+        for (; position < size; position++, z++, shifted++) {
+            int slot = order[position];
+
+            if (coordinateZ[slot] != z || slot == excludedSlot) {
+                break;
+            }
+            coordinateZ[slot] = z + 1;
+        }
+
+        return shifted;
+    }
+
+    void renumber(long step) {
+        for (int position = 0; position < size; position++) {
+            coordinateZ[order[position]] = position * step;
+        }
+    }
+
+    /**
+     * @return widgets from the position on in Z order, skipping {@code offset} and taking up to {@code limit}
+     */
+    List<Widget> collect(int fromPosition, long offset, int limit) {
+        List<Widget> widgets = new ArrayList<>(Math.min(limit, Math.max(size - fromPosition, 0)));
+        long position = fromPosition + offset;
+
+        for (; position < size && widgets.size() < limit; position++) {
+            widgets.add(get(order[(int) position]));
+        }
+
+        return widgets;
+    }
+
+    /**
+     * Like {@link #collect}, keeping only the widgets matching the filter. The first positions are tested directly
+     * in Z order, which is enough when matches are dense; past {@link #walkBudget} the remaining ones are looked up
+     * in a scan of the whole columns, split across cores for large stores.
+     */
+    List<Widget> find(int fromPosition, WidgetFilter filter, long offset, int limit) {
+        WidgetScanEvent event = new WidgetScanEvent();
+        SlotFilter slotFilter = new SlotFilter(filter);
+        List<Widget> widgets = new ArrayList<>(Math.min(limit, PAGE_CAPACITY));
+        int walkEnd = (int) Math.min(size, (long) fromPosition + walkBudget());
+        long[] matched = null;
+        long skipped = 0;
+        int position = fromPosition;
+
+        event.begin();
+        for (; position < size && widgets.size() < limit; position++) {
+            int slot = order[position];
+
+            if (position < walkEnd) {
+                if (!slotFilter.test(slot)) {
+                    continue;
+                }
+            } else {
+                if (Objects.isNull(matched)) {
+                    matched = slotFilter.scan();
+                }
+                if ((matched[slot >>> 6] & 1L << slot) == 0) {
+                    continue;
+                }
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            widgets.add(get(slot));
+        }
+
+        WidgetMetrics.scanned(event, "columnar", filter,
+            Math.min(position, walkEnd) - fromPosition + (Objects.isNull(matched) ? 0 : used),
+            widgets.size(), Objects.nonNull(matched));
+        return widgets;
+    }
+
+    /**
+     * Positions tested one by one before a full scan pays off: each costs a few cache misses in the columns,
+     * a scanned slot costs a sequential read.
+     */
+    private int walkBudget() {
+        return Math.max(MIN_WALK, used >>> 6);
+    }
+
+    private int allocate() {
+        int slot;
+
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (used == idMost.length) {
+                grow(used * 2);
+            }
+            slot = used++;
+        }
+        live.set(slot);
+
+        return slot;
+    }
+
+    private void grow(int capacity) {
+        idMost = Arrays.copyOf(idMost, capacity);
+        idLeast = Arrays.copyOf(idLeast, capacity);
+        coordinateX = Arrays.copyOf(coordinateX, capacity);
+        coordinateY = Arrays.copyOf(coordinateY, capacity);
+        coordinateZ = Arrays.copyOf(coordinateZ, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        createdAt = Arrays.copyOf(createdAt, capacity);
+        updatedAt = Arrays.copyOf(updatedAt, capacity);
+        names = Arrays.copyOf(names, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        order = Arrays.copyOf(order, capacity);
+
+        int[] previous = ids;
+
+        ids = new int[capacity * 2];
+        for (int entry : previous) {
+            if (entry != 0) {
+                indexId(entry - 1);
+            }
+        }
+    }
+
+    private void insertOrder(int slot) {
+        int position = upperBound(coordinateZ[slot]);
+
+        System.arraycopy(order, position, order, position + 1, size - position);
+        order[position] = slot;
+        size++;
+    }
+
+    private void removeOrder(int slot) {
+        int position = lowerBound(coordinateZ[slot]);
+
+        while (order[position] != slot) {
+            position++;
+        }
+        System.arraycopy(order, position + 1, order, position, size - position - 1);
+        size--;
+    }
+
+    private void indexId(int slot) {
+        int mask = ids.length - 1;
+        int i = bucket(idMost[slot], idLeast[slot]);
+
+        while (ids[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        ids[i] = slot + 1;
+    }
+
+    /**
+     * Empties the bucket of the slot and moves back the entries after it that would no longer be reachable
+     * (backward-shift deletion), so lookups never need tombstones.
+     */
+    private void unindexId(int slot) {
+        int mask = ids.length - 1;
+        int i = bucket(idMost[slot], idLeast[slot]);
+
+        while (ids[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+
+        for (int j = (i + 1) & mask; ids[j] != 0; j = (j + 1) & mask) {
+            int home = bucket(idMost[ids[j] - 1], idLeast[ids[j] - 1]);
+
+            if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+                continue;
+            }
+            ids[i] = ids[j];
+            i = j;
+        }
+        ids[i] = 0;
+    }
+
+    private int bucket(long most, long least) {
+        long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash >>> 32) & (ids.length - 1);
+    }
+
+    private String intern(String name) {
+        if (Objects.isNull(name)) {
+            return null;
+        }
+
+        WeakReference<String> reference = internedNames.get(name);
+        String interned = Objects.nonNull(reference) ? reference.get() : null;
+
+        if (Objects.isNull(interned)) {
+            internedNames.put(name, new WeakReference<>(name));
+            interned = name;
+        }
+
+        return interned;
+    }
+
+    private static long valueOf(Long value) {
+        return Objects.nonNull(value) ? value : NULL;
+    }
+
+    private static Long boxed(long value) {
+        return value != NULL ? value : null;
+    }
+
+    /**
+     * {@link WidgetFilter#test} over the columns, with the filter unboxed once.
+     */
+    private final class SlotFilter {
+
+        private final boolean byMaxX;
+
+        private final boolean byMaxY;
+
+        private final boolean byWidth;
+
+        private final boolean byHeight;
+
+        private final long maxX;
+
+        private final long maxY;
+
+        private final long expectedWidth;
+
+        private final long expectedHeight;
+
+        private SlotFilter(WidgetFilter filter) {
+            byMaxX = Objects.nonNull(filter.getMaxCoordinateX());
+            byMaxY = Objects.nonNull(filter.getMaxCoordinateY());
+            byWidth = Objects.nonNull(filter.getWidth());
+            byHeight = Objects.nonNull(filter.getHeight());
+            maxX = byMaxX ? filter.getMaxCoordinateX() : 0;
+            maxY = byMaxY ? filter.getMaxCoordinateY() : 0;
+            expectedWidth = byWidth ? filter.getWidth() : 0;
+            expectedHeight = byHeight ? filter.getHeight() : 0;
+        }
+
+        private boolean test(int slot) {
+            long x = coordinateX[slot];
+            long y = coordinateY[slot];
+
+            if (byMaxY && (y < 0 || y > maxY)) {
+                return false;
+            }
+            if (byMaxX && (x < 0 || x > maxX)) {
+                return false;
+            }
+            if (byWidth && width[slot] != expectedWidth) {
+                return false;
+            }
+            if (byHeight && height[slot] != expectedHeight) {
+                return false;
+            }
+            if (byMaxY && byHeight && y + height[slot] / 2.0 > maxY) {
+                return false;
+            }
+            return !byMaxX || !byWidth || x + width[slot] / 2.0 <= maxX;
+        }
+
+        /**
+         * @return bitmap of the live slots matching the filter
+         */
+        private long[] scan() {
+            long[] liveWords = live.toLongArray();
+            long[] matched = new long[(used + 63) >>> 6];
+
+            if (used <= SCAN_CHUNK) {
+                scan(liveWords, matched, 0, used);
+            } else {
+                ForkJoinPool.commonPool().invoke(new ScanTask(liveWords, matched, 0, used));
+            }
+
+            return matched;
+        }
+
+        private void scan(long[] liveWords, long[] matched, int from, int to) {
+            for (int slot = from; slot < to; slot++) {
+                int word = slot >>> 6;
+
+                if (word < liveWords.length && (liveWords[word] & 1L << slot) != 0 && test(slot)) {
+                    matched[word] |= 1L << slot;
+                }
+            }
+        }
+
+        private final class ScanTask extends RecursiveAction {
+
+            private final long[] liveWords;
+
+            private final long[] matched;
+
+            private final int from;
+
+            private final int to;
+
+            private ScanTask(long[] liveWords, long[] matched, int from, int to) {
+                this.liveWords = liveWords;
+                this.matched = matched;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= SCAN_CHUNK) {
+                    scan(liveWords, matched, from, to);
+                    return;
+                }
+
+                int middle = from + Math.max(1, (to - from) / 2 / SCAN_CHUNK) * SCAN_CHUNK;
+
+                invokeAll(new ScanTask(liveWords, matched, from, middle), new ScanTask(liveWords, matched, middle, to));
+            }
+        }
+    }
+}
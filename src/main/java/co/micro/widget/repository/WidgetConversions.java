@@ -0,0 +1,63 @@
+package co.micro.widget.repository;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.exception.WidgetException;
+
+
+/**
+ * Turns write requests into widgets, the same way for every repository.
+ */
+final class WidgetConversions {
+
+    private WidgetConversions() {
+    }
+
+    /**
+     * Applies an update to the stored widget: a missing coordinate Z keeps the stored one, the creation time
+     * is never changed.
+     */
+    static Widget merge(Widget previous, Widget widget) {
+        if (Objects.isNull(previous)) {
+            if (Objects.isNull(widget.getCoordinateZ())) {
+                throw WidgetException.widgetNotFound(widget.getWidgetId());
+            }
+            return widget;
+        }
+
+        return widget
+            .withCoordinateZ(Optional.ofNullable(widget.getCoordinateZ()).orElse(previous.getCoordinateZ()))
+            .withCreatedAt(previous.getCreatedAt());
+    }
+
+    static Widget convertToWidget(CreateWidget request) {
+        return Widget.builder()
+            .widgetId(request.getWidgetId())
+            .widgetName(request.getWidgetName())
+            .coordinateX(request.getCoordinateX())
+            .coordinateY(request.getCoordinateY())
+            .coordinateZ(request.getCoordinateZ())
+            .height(request.getHeight())
+            .width(request.getWidth())
+            .updatedAt(request.getUpdatedAt())
+            .createdAt(request.getCreatedAt())
+            .build();
+    }
+
+    static Widget convertToWidget(UpdateWidget request) {
+        return Widget.builder()
+            .widgetId(request.getWidgetId())
+            .widgetName(request.getWidgetName())
+            .coordinateX(request.getCoordinateX())
+            .coordinateY(request.getCoordinateY())
+            .coordinateZ(request.getCoordinateZ())
+            .updatedAt(request.getUpdatedAt())
+            .height(request.getHeight())
+            .width(request.getWidth())
+            .build();
+    }
+}
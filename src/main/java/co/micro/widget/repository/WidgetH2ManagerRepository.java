@@ -1,31 +1,72 @@
 package co.micro.widget.repository;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
 import co.micro.widget.exception.WidgetException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.data.util.Pair;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 
 @Repository
 public class WidgetH2ManagerRepository implements WidgetRepository {
 
+    private static final String[] WIDGET_COLUMNS = {
+        "widget_id", "widget_name", "coordinate_x", "coordinate_y", "coordinate_z", "width", "height", "updated_at", "created_at"
+    };
+
+    /**
+     * Columns a partial update may set, in statement order: bit {@code i} of a field mask stands for column {@code i}.
+     */
+    private static final String[] UPDATE_COLUMNS = {
+        "coordinate_x", "coordinate_y", "coordinate_z", "width", "height", "widget_name"
+    };
+
+    /**
+     * UPDATE text for every field mask, built once so that each shape is a constant string H2 can reuse.
+     */
+    private static final String[] UPDATE_STATEMENTS = IntStream.range(0, 1 << UPDATE_COLUMNS.length)
+        .mapToObj(WidgetH2ManagerRepository::prepareUpdate)
+        .toArray(String[]::new);
+
     @Autowired
     public JdbcTemplate jdbcTemplate;
 
+    /**
+     * Told the id of every widget written or deleted, once the change is committed.
+     */
+    private volatile WidgetChangeListener changeListener = WidgetChangeListener.NONE;
+
     @Override
     public Widget createWidget(CreateWidget request) {
         jdbcTemplate.update(
@@ -43,17 +84,35 @@ public class WidgetH2ManagerRepository implements WidgetRepository {
                 request.getCreatedAt()
             }
         );
+        changed(List.of(request.getWidgetId()));
 
-        return getWidget(request.getWidgetId()).get();
+        return WidgetConversions.convertToWidget(request);
     }
 
+    /**
+     * The stored row comes back as the generated keys of the update itself, with the fields missing
+     * from the request (coordinate Z in particular) at their stored values.
+     */
     @Override
     public Widget updateWidget(UpdateWidget request) {
-        Pair<String, List<Object>> stmt = prepareUpdate(request);
+        Pair<String, Object[]> stmt = prepareUpdate(request);
+
+        Widget widget = jdbcTemplate.execute(
+            (Connection connection) -> connection.prepareStatement(stmt.getFirst(), WIDGET_COLUMNS),
+            (PreparedStatement ps) -> {
+                new ArgumentPreparedStatementSetter(stmt.getSecond()).setValues(ps);
+                ps.executeUpdate();
 
-        jdbcTemplate.update(stmt.getFirst(), stmt.getSecond().toArray());
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    if (!rs.next()) {
+                        throw WidgetException.widgetNotFound(request.getWidgetId());
+                    }
+                    return new WidgetMapper().mapRow(rs, 0);
+                }
+            });
+        changed(List.of(widget.getWidgetId()));
 
-        return getWidget(request.getWidgetId()).get();
+        return widget;
     }
 
     @Override
@@ -64,6 +123,114 @@ public class WidgetH2ManagerRepository implements WidgetRepository {
         if (deleted == 0) {
             throw WidgetException.widgetNotFound(widgetId);
         }
+        changed(List.of(widgetId));
+    }
+
+    @Override
+    public void addChangeListener(WidgetChangeListener listener) {
+        changeListener = changeListener.andThen(listener);
+    }
+
+    /**
+     * Plans the batch over the rows it can reach only: the widgets it names and the ones from the lowest Z it
+     * inserts at upwards, since an insert shifts nothing below its Z. A create at the top counts as an insert
+     * at the highest Z that stays in place.
+     */
+    @Override
+    @Transactional
+    public List<Widget> applyBatch(WidgetBatch batch) {
+        WidgetBatchPlan plan = WidgetBatchPlan.of(getBatchWidgets(batch), batch);
+
+        saveWidgets(plan.getDeletedIds(), plan.getWidgets());
+
+        return plan.getResults();
+    }
+
+    private List<Widget> getBatchWidgets(WidgetBatch batch) {
+        List<UUID> deletedIds = Optional.ofNullable(batch.getDelete()).orElse(List.of());
+        Map<UUID, UpdateWidget> updates = Optional.ofNullable(batch.getUpdate()).orElse(Map.of());
+        List<CreateWidget> creates = Optional.ofNullable(batch.getCreate()).orElse(List.of());
+
+        List<UUID> namedIds = Stream.concat(deletedIds.stream(), updates.keySet().stream())
+            .distinct()
+            .collect(Collectors.toList());
+        List<UUID> vacatedIds = Stream.concat(
+            deletedIds.stream(),
+            updates.entrySet().stream()
+                .filter(entry -> Objects.nonNull(entry.getValue().getCoordinateZ()))
+                .map(Map.Entry::getKey))
+            .distinct()
+            .collect(Collectors.toList());
+        Optional<Long> fromZ = Stream.concat(
+            updates.values().stream().map(UpdateWidget::getCoordinateZ),
+            creates.stream().map(CreateWidget::getCoordinateZ))
+            .filter(Objects::nonNull)
+            .min(Long::compare);
+
+        if (creates.stream().anyMatch(request -> Objects.isNull(request.getCoordinateZ()))) {
+            Optional<Long> topZ = Optional.ofNullable(jdbcTemplate.queryForObject(
+                "SELECT MAX(coordinate_z) FROM widgets" +
+                (vacatedIds.isEmpty() ? "" : "\nWHERE widget_id NOT IN (" + placeholders(vacatedIds.size()) + ")"),
+                Long.class,
+                vacatedIds.toArray()));
+
+            fromZ = Stream.concat(fromZ.stream(), topZ.stream()).min(Long::compare);
+        }
+
+        List<String> conditions = new ArrayList<>();
+        List<Object> args = new ArrayList<>(namedIds);
+
+        if (!namedIds.isEmpty()) {
+            conditions.add("widget_id IN (" + placeholders(namedIds.size()) + ")");
+        }
+        if (fromZ.isPresent()) {
+            conditions.add("coordinate_z >= ?");
+            args.add(fromZ.get());
+        }
+        if (conditions.isEmpty()) {
+            return List.of();
+        }
+
+        return jdbcTemplate.query(
+            "SELECT widget_id, widget_name, coordinate_x, coordinate_y, coordinate_z, width, height, updated_at, created_at FROM widgets\n" +
+            "WHERE " + String.join(" OR ", conditions),
+            new WidgetMapper(),
+            args.toArray());
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * The deletes and merges commit together, so a failed write leaves the table as it was.
+     */
+    @Override
+    @Transactional
+    public void saveWidgets(Collection<UUID> deletedIds, Collection<Widget> widgets) {
+        jdbcTemplate.batchUpdate(
+            "DELETE FROM widgets WHERE widget_id = ?",
+            deletedIds.stream()
+                .map(widgetId -> new Object[]{widgetId})
+                .collect(Collectors.toList()));
+        jdbcTemplate.batchUpdate(
+            "MERGE INTO widgets (widget_id, widget_name, coordinate_x, coordinate_y, coordinate_z, width, height, updated_at, created_at)\n" +
+            "KEY (widget_id) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)",
+            widgets.stream()
+                .map(widget -> new Object[]{
+                    widget.getWidgetId(),
+                    widget.getWidgetName(),
+                    widget.getCoordinateX(),
+                    widget.getCoordinateY(),
+                    widget.getCoordinateZ(),
+                    widget.getWidth(),
+                    widget.getHeight(),
+                    widget.getUpdatedAt(),
+                    widget.getCreatedAt()
+                })
+                .collect(Collectors.toList()));
+        changed(Stream.concat(deletedIds.stream(), widgets.stream().map(Widget::getWidgetId))
+            .collect(Collectors.toList()));
     }
 
     @Override
@@ -98,6 +265,33 @@ public class WidgetH2ManagerRepository implements WidgetRepository {
             new WidgetMapper());
     }
 
+    /**
+     * Reads the whole table through a forward-only cursor fetching {@code fetchSize} rows at a time, for warming up
+     * an in-memory store. The query runs lazily, so H2 streams the rows instead of materializing the result first.
+     */
+    public List<Widget> loadWidgets(int fetchSize) {
+        return jdbcTemplate.execute((ConnectionCallback<List<Widget>>) connection -> {
+            setLazyQueryExecution(connection, true);
+            try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT widget_id, widget_name, coordinate_x, coordinate_y, coordinate_z, width, height, updated_at, created_at FROM widgets",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(fetchSize);
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    List<Widget> widgets = new ArrayList<>();
+                    WidgetMapper mapper = new WidgetMapper();
+
+                    while (rs.next()) {
+                        widgets.add(mapper.mapRow(rs, widgets.size()));
+                    }
+                    return widgets;
+                }
+            } finally {
+                setLazyQueryExecution(connection, false);
+            }
+        });
+    }
+
     @Override
     public List<Widget> getWidgets(Long startFromZ) {
         return jdbcTemplate.query(
@@ -112,48 +306,194 @@ public class WidgetH2ManagerRepository implements WidgetRepository {
             startFromZ);
     }
 
-    private static Pair<String, List<Object>> prepareUpdate(UpdateWidget widget) {
-        StringBuilder set = new StringBuilder("SET\n");
-        List<Object> params = new LinkedList<>();
+    @Override
+    public int shiftCoordinateZ(Long startFromZ, UUID excludedWidgetId) {
+        String excluded = Objects.nonNull(excludedWidgetId) ? excludedWidgetId.toString() : "";
+        Long endZ = jdbcTemplate.queryForObject(
+            "SELECT MIN(w.coordinate_z) FROM widgets w\n" +
+            "WHERE w.coordinate_z >= ? AND w.widget_id <> ?\n" +
+            "AND NOT EXISTS (SELECT 1 FROM widgets n WHERE n.coordinate_z = w.coordinate_z + 1 AND n.widget_id <> ?)\n" +
+            "AND EXISTS (SELECT 1 FROM widgets s WHERE s.coordinate_z = ? AND s.widget_id <> ?)",
+            Long.class,
+            startFromZ, excluded, excluded, startFromZ, excluded);
 
-        if (Objects.nonNull(widget.getCoordinateX())) {
-            set.append("coordinate_x = ?,\n");
-            params.add(widget.getCoordinateX());
+        if (Objects.isNull(endZ)) {
+            return 0;
         }
-        if (Objects.nonNull(widget.getCoordinateY())) {
-            set.append("coordinate_y = ?,\n");
-            params.add(widget.getCoordinateY());
+
+        int shifted = jdbcTemplate.update(
+            "UPDATE widgets SET coordinate_z = coordinate_z + 1\n" +
+            "WHERE coordinate_z BETWEEN ? AND ? AND widget_id <> ?",
+            startFromZ, endZ, excluded);
+        report(listener -> listener.moved(startFromZ + 1, endZ + 1));
+
+        return shifted;
+    }
+
+    @Override
+    public void renumberCoordinateZ(long step) {
+        int renumbered = jdbcTemplate.update(
+            "MERGE INTO widgets (widget_id, coordinate_z) KEY (widget_id)\n" +
+            "SELECT widget_id, (ROW_NUMBER() OVER (ORDER BY coordinate_z) - 1) * ? FROM widgets",
+            step);
+        if (renumbered > 0) {
+            report(listener -> listener.moved(0, (renumbered - 1) * step));
         }
-        if (Objects.nonNull(widget.getCoordinateZ())) {
-            set.append("coordinate_z = ?,\n");
-            params.add(widget.getCoordinateZ());
+    }
+
+    private void changed(Collection<UUID> widgetIds) {
+        report(listener -> listener.changed(widgetIds));
+    }
+
+    /**
+     * Tells the listener right away, or after commit when a transaction is running, so that the changes never
+     * come ahead of the rows.
+     */
+    private void report(Consumer<WidgetChangeListener> change) {
+        WidgetChangeListener listener = changeListener;
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            change.accept(listener);
+            return;
         }
-        if (Objects.nonNull(widget.getWidth())) {
-            set.append("width = ?,\n");
-            params.add(widget.getWidth());
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                change.accept(listener);
+            }
+        });
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter) {
+        return findInArea(filter, null, 0, null);
+    }
+
+    @Override
+    public List<Widget> findInAreaAfter(WidgetFilter filter, Long afterZ, int limit) {
+        return findInArea(filter, afterZ, 0, limit);
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter, long offset, int limit) {
+        return findInArea(filter, null, offset, limit);
+    }
+
+    @Override
+    public List<Widget> getWidgets(long offset, int limit) {
+        return findInArea(WidgetFilter.builder().build(), null, offset, limit);
+    }
+
+    private List<Widget> findInArea(WidgetFilter filter, Long afterZ, long offset, Integer limit) {
+        Pair<String, List<Object>> stmt = prepareQuery(filter, afterZ, offset, limit);
+
+        return jdbcTemplate.query(stmt.getFirst(), new WidgetMapper(), stmt.getSecond().toArray());
+    }
+
+    @Override
+    public long countWidgets() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM widgets", Long.class);
+    }
+
+    @Override
+    public long countWidgetsBelow(Long z) {
+        return jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM widgets WHERE coordinate_z < ?",
+            Long.class,
+            z);
+    }
+
+    private static Pair<String, List<Object>> prepareQuery(WidgetFilter filter, Long afterZ, long offset, Integer limit) {
+        StringBuilder where = new StringBuilder("WHERE TRUE\n");
+        List<Object> params = new ArrayList<>();
+
+        if (Objects.nonNull(filter.getMaxCoordinateX())) {
+            where.append("AND coordinate_x BETWEEN 0 AND ?\n");
+            params.add(filter.getMaxCoordinateX());
         }
-        if (Objects.nonNull(widget.getHeight())) {
-            set.append("height = ?,\n");
-            params.add(widget.getHeight());
+        if (Objects.nonNull(filter.getMaxCoordinateY())) {
+            where.append("AND coordinate_y BETWEEN 0 AND ?\n");
+            params.add(filter.getMaxCoordinateY());
         }
-        if (Objects.nonNull(widget.getWidgetName())) {
-            set.append("widget_name = ?,\n");
-            params.add(widget.getWidgetName());
+        if (Objects.nonNull(filter.getWidth())) {
+            where.append("AND width = ?\n");
+            params.add(filter.getWidth());
+        }
+        if (Objects.nonNull(filter.getHeight())) {
+            where.append("AND height = ?\n");
+            params.add(filter.getHeight());
+        }
+        if (Objects.nonNull(filter.getMaxCoordinateX()) && Objects.nonNull(filter.getWidth())) {
+            where.append("AND coordinate_x + width / 2.0 <= ?\n");
+            params.add(filter.getMaxCoordinateX());
+        }
+        if (Objects.nonNull(filter.getMaxCoordinateY()) && Objects.nonNull(filter.getHeight())) {
+            where.append("AND coordinate_y + height / 2.0 <= ?\n");
+            params.add(filter.getMaxCoordinateY());
+        }
+        if (Objects.nonNull(afterZ)) {
+            where.append("AND coordinate_z > ?\n");
+            params.add(afterZ);
         }
 
-        set.append("updated_at = ?,\n");
-        params.add(widget.getUpdatedAt());
-
-        params.add(widget.getWidgetId());
+        where.append("ORDER BY coordinate_z\n");
+        if (Objects.nonNull(limit)) {
+            where.append("LIMIT ? OFFSET ?");
+            params.add(limit);
+            params.add(offset);
+        }
 
         return Pair.of(
-            new StringBuilder("UPDATE widgets\n")
-                .append(set.toString().replaceAll(",$", ""))
-                .append("WHERE widget_id = ?")
-                .toString(),
+            "SELECT widget_id, widget_name, coordinate_x, coordinate_y, coordinate_z, width, height, updated_at, created_at FROM widgets\n" +
+            where,
             params);
     }
 
+    /**
+     * Binds the fields present in the request to the cached statement of their mask, see {@link #UPDATE_STATEMENTS}.
+     */
+    private static Pair<String, Object[]> prepareUpdate(UpdateWidget widget) {
+        Object[] values = {
+            widget.getCoordinateX(),
+            widget.getCoordinateY(),
+            widget.getCoordinateZ(),
+            widget.getWidth(),
+            widget.getHeight(),
+            widget.getWidgetName()
+        };
+        Object[] params = new Object[values.length + 2];
+        int mask = 0;
+        int size = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            if (Objects.nonNull(values[i])) {
+                mask |= 1 << i;
+                params[size++] = values[i];
+            }
+        }
+        params[size++] = widget.getUpdatedAt();
+        params[size++] = widget.getWidgetId();
+
+        return Pair.of(UPDATE_STATEMENTS[mask], Arrays.copyOf(params, size));
+    }
+
+    private static String prepareUpdate(int mask) {
+        return Stream.concat(
+                IntStream.range(0, UPDATE_COLUMNS.length)
+                    .filter(i -> (mask & 1 << i) != 0)
+                    .mapToObj(i -> UPDATE_COLUMNS[i]),
+                Stream.of("updated_at"))
+            .map(column -> column + " = ?")
+            .collect(Collectors.joining(",\n", "UPDATE widgets\nSET\n", "\nWHERE widget_id = ?"));
+    }
+
+    private static void setLazyQueryExecution(Connection connection, boolean lazy) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION " + lazy);
+        }
+    }
+
     private static final class WidgetMapper implements RowMapper<Widget> {
         public Widget mapRow(ResultSet rs, int rowNum) throws SQLException {
             return Widget.builder()
@@ -0,0 +1,159 @@
+package co.micro.widget.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
+
+
+/**
+ * Repository serving every read and write from a {@link WidgetInMemoryManagerRepository} and told the id
+ * of each widget it writes or deletes, for persisting the changes elsewhere.
+ */
+abstract class WidgetInMemoryBackedRepository implements WidgetRepository {
+
+    protected final WidgetInMemoryManagerRepository memoryRepository = new WidgetInMemoryManagerRepository(this::onChange);
+
+    /**
+     * Called after the widget has been written or deleted in memory, on the writing thread.
+     */
+    protected abstract void onChange(UUID widgetId);
+
+    /**
+     * Called once a write operation has completed in memory, after {@link #onChange} for each widget it changed.
+     */
+    protected void afterWrite() {
+    }
+
+    @Override
+    public Widget createWidget(CreateWidget request) {
+        Widget widget = memoryRepository.createWidget(request);
+
+        afterWrite();
+        return widget;
+    }
+
+    @Override
+    public Widget updateWidget(UpdateWidget request) {
+        Widget widget = memoryRepository.updateWidget(request);
+
+        afterWrite();
+        return widget;
+    }
+
+    @Override
+    public void deleteWidget(UUID widgetId) {
+        memoryRepository.deleteWidget(widgetId);
+        afterWrite();
+    }
+
+    @Override
+    public Optional<Widget> getWidget(UUID widgetId) {
+        return memoryRepository.getWidget(widgetId);
+    }
+
+    @Override
+    public List<Widget> getWidgets() {
+        return memoryRepository.getWidgets();
+    }
+
+    @Override
+    public void addChangeListener(WidgetChangeListener listener) {
+        memoryRepository.addChangeListener(listener);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return memoryRepository.isThreadSafe();
+    }
+
+    @Override
+    public List<Widget> getWidgets(Long startFromZ) {
+        return memoryRepository.getWidgets(startFromZ);
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter) {
+        return memoryRepository.findInArea(filter);
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter, long offset, int limit) {
+        return memoryRepository.findInArea(filter, offset, limit);
+    }
+
+    @Override
+    public List<Widget> findInAreaAfter(WidgetFilter filter, Long afterZ, int limit) {
+        return memoryRepository.findInAreaAfter(filter, afterZ, limit);
+    }
+
+    @Override
+    public List<Widget> getWidgets(long offset, int limit) {
+        return memoryRepository.getWidgets(offset, limit);
+    }
+
+    @Override
+    public long countWidgets() {
+        return memoryRepository.countWidgets();
+    }
+
+    @Override
+    public long countWidgetsBelow(Long z) {
+        return memoryRepository.countWidgetsBelow(z);
+    }
+
+    @Override
+    public Optional<Widget> getWidgetMaxByCoordinateZ() {
+        return memoryRepository.getWidgetMaxByCoordinateZ();
+    }
+
+    @Override
+    public Widget createWidgetAt(CreateWidget request) {
+        Widget widget = memoryRepository.createWidgetAt(request);
+
+        afterWrite();
+        return widget;
+    }
+
+    @Override
+    public Widget updateWidgetAt(UpdateWidget request) {
+        Widget widget = memoryRepository.updateWidgetAt(request);
+
+        afterWrite();
+        return widget;
+    }
+
+    @Override
+    public List<Widget> applyBatch(WidgetBatch batch) {
+        List<Widget> results = memoryRepository.applyBatch(batch);
+
+        afterWrite();
+        return results;
+    }
+
+    @Override
+    public void saveWidgets(Collection<UUID> deletedIds, Collection<Widget> widgets) {
+        memoryRepository.saveWidgets(deletedIds, widgets);
+        afterWrite();
+    }
+
+    @Override
+    public int shiftCoordinateZ(Long startFromZ, UUID excludedWidgetId) {
+        int shifted = memoryRepository.shiftCoordinateZ(startFromZ, excludedWidgetId);
+
+        afterWrite();
+        return shifted;
+    }
+
+    @Override
+    public void renumberCoordinateZ(long step) {
+        memoryRepository.renumberCoordinateZ(step);
+        afterWrite();
+    }
+}
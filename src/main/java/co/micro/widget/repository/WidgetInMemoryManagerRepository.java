@@ -1,41 +1,160 @@
 package co.micro.widget.repository;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.trace.WidgetScanEvent;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Repository;
 
 
+/**
+ * Concurrent in-memory repository, safe for direct use from many threads. Writes of a single widget
+ * are atomic per widget and run in parallel; shifts, renumbering and the compound writes run exclusively.
+ */
 @Repository
 @Primary
+@ConditionalOnProperty(name = "widget.repository", havingValue = "memory", matchIfMissing = true)
 public class WidgetInMemoryManagerRepository implements WidgetRepository {
 
-    private Map<UUID, Widget> widgets = new TreeMap<>();
+    private static final long CELL_SIZE = 256;
+
+    /**
+     * Writes of a single widget share the lock and are serialized per widget by {@link ConcurrentHashMap#compute},
+     * which also updates the indexes. Operations that move other widgets hold it exclusively. Listings share it,
+     * so they never see a shift half done; lookups by id do not lock at all.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private ConcurrentHashMap<UUID, Widget> widgets = new ConcurrentHashMap<>();
+
+    /**
+     * Secondary index ordered by coordinate Z, kept in step with {@link #widgets}.
+     * Z is unique per widget (colliding widgets are shifted before writing).
+     */
+    private NavigableMap<Long, Widget> widgetsByZ = new ConcurrentSkipListMap<>();
+
+    private WidgetSpatialIndex spatialIndex = new WidgetSpatialIndex(CELL_SIZE);
+
+    /**
+     * Told the id of every widget written or deleted, shifted ones included, after the write.
+     */
+    private final Consumer<UUID> onChange;
+
+    private volatile WidgetChangeListener changeListener = WidgetChangeListener.NONE;
+
+    public WidgetInMemoryManagerRepository() {
+        this(widgetId -> { });
+    }
+
+    WidgetInMemoryManagerRepository(Consumer<UUID> onChange) {
+        this.onChange = onChange;
+    }
 
     @Override
     public Widget createWidget(CreateWidget request) {
-        return put(convertToWidget(request));
+        Widget widget = WidgetConversions.convertToWidget(request);
+        Widget stored = setReadLock(() -> put(widget.getWidgetId(), previous -> widget));
+
+        changeListener.changed(List.of(stored.getWidgetId()));
+        return stored;
     }
 
     @Override
     public Widget updateWidget(UpdateWidget request) {
-        return put(convertToWidget(request));
+        Widget widget = WidgetConversions.convertToWidget(request);
+        Widget stored = setReadLock(() -> put(widget.getWidgetId(), previous -> WidgetConversions.merge(previous, widget)));
+
+        changeListener.changed(List.of(stored.getWidgetId()));
+        return stored;
     }
 
     @Override
     public void deleteWidget(UUID widgetId) {
-        widgets.remove(widgetId);
+        if (setReadLock(() -> remove(widgetId))) {
+            changeListener.changed(List.of(widgetId));
+        }
+    }
+
+    @Override
+    public void addChangeListener(WidgetChangeListener listener) {
+        changeListener = changeListener.andThen(listener);
+    }
+
+    @Override
+    public Widget createWidgetAt(CreateWidget request) {
+        return setWriteLock(() -> WidgetRepository.super.createWidgetAt(request));
+    }
+
+    @Override
+    public Widget updateWidgetAt(UpdateWidget request) {
+        return setWriteLock(() -> WidgetRepository.super.updateWidgetAt(request));
+    }
+
+    @Override
+    public List<Widget> applyBatch(WidgetBatch batch) {
+        return setWriteLock(() -> WidgetRepository.super.applyBatch(batch));
+    }
+
+    @Override
+    public void saveWidgets(Collection<UUID> deletedIds, Collection<Widget> widgets) {
+        List<UUID> removedIds = setWriteLock(() -> {
+            List<UUID> removed = deletedIds.stream().filter(this::remove).collect(Collectors.toList());
+
+            widgets.forEach(widget -> put(widget.getWidgetId(), previous -> widget));
+            return removed;
+        });
+        changeListener.changed(Stream.concat(removedIds.stream(), widgets.stream().map(Widget::getWidgetId))
+            .collect(Collectors.toList()));
+    }
+
+    /**
+     * Replaces the stored widgets, filling the id map and both indexes in parallel. Meant for warming up
+     * the repository before it serves requests; no listener is told.
+     */
+    public void load(Collection<Widget> loaded) {
+        setWriteLock(() -> {
+            ConcurrentHashMap<UUID, Widget> byId = new ConcurrentHashMap<>(Math.max(16, loaded.size() * 4 / 3 + 1));
+            NavigableMap<Long, Widget> byZ = new ConcurrentSkipListMap<>();
+            WidgetSpatialIndex index = new WidgetSpatialIndex(CELL_SIZE);
+
+            loaded.parallelStream().forEach(widget -> {
+                byId.put(widget.getWidgetId(), widget);
+                byZ.put(widget.getCoordinateZ(), widget);
+            });
+            index.addAll(loaded);
+
+            widgets = byId;
+            widgetsByZ = byZ;
+            spatialIndex = index;
+            return loaded.size();
+        });
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
     }
 
     @Override
@@ -49,55 +168,254 @@ public class WidgetInMemoryManagerRepository implements WidgetRepository {
 
     @Override
     public List<Widget> getWidgets(Long startFromZ) {
-        return widgets.values().stream()
-            .filter(widget -> widget.getCoordinateZ() >= startFromZ)
-            .sorted(Comparator.comparingLong(Widget::getCoordinateZ))
-            .collect(Collectors.toList());
+        return setReadLock(() -> new ArrayList<>(widgetsByZ.tailMap(startFromZ, true).values()));
     }
 
     @Override
-    public List<Widget> getWidgets() {
-        return new ArrayList(widgets.values());
+    public int shiftCoordinateZ(Long startFromZ, UUID excludedWidgetId) {
+        return setWriteLock(() -> shift(startFromZ, excludedWidgetId));
     }
 
-    private Widget put(Widget widget) {
-        widgets.put(widget.getWidgetId(), widget);
+    @Override
+    public void renumberCoordinateZ(long step) {
+        setWriteLock(() -> {
+            renumber(step);
+            return step;
+        });
+    }
+
+    @Override
+    public List<Widget> getWidgets(long offset, int limit) {
+        return setReadLock(() -> widgetsByZ.values().stream()
+            .skip(offset)
+            .limit(limit)
+            .collect(Collectors.toList()));
+    }
+
+    @Override
+    public long countWidgets() {
+        return widgets.size();
+    }
+
+    /**
+     * Walks the head of the skip list, so it takes time linear in the count: the skip list keeps no sizes.
+     * Callers ranking many widgets keep an index of their own, as the sparse allocator does.
+     */
+    @Override
+    public long countWidgetsBelow(Long z) {
+        return setReadLock(() -> widgetsByZ.headMap(z, false).size());
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter) {
+        return setReadLock(() -> find(filter));
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter, long offset, int limit) {
+        return setReadLock(() -> find(filter, offset, limit));
+    }
 
-        return widgets.get(widget.getWidgetId());
+    @Override
+    public List<Widget> findInAreaAfter(WidgetFilter filter, Long afterZ, int limit) {
+        return setReadLock(() -> findAfter(filter, afterZ, limit));
+    }
+
+    @Override
+    public List<Widget> getWidgets() {
+        return setReadLock(() -> new ArrayList<>(widgetsByZ.values()));
     }
 
     @Override
     public Optional<Widget> getWidgetMaxByCoordinateZ() {
-        return !widgets.isEmpty() ?
-            widgets.values().stream()
-                .max(Comparator.comparingLong(Widget::getCoordinateZ)) :
-            Optional.empty();
+        return setReadLock(() -> Optional.ofNullable(widgetsByZ.lastEntry()).map(Map.Entry::getValue));
+    }
+
+    private int shift(Long startFromZ, UUID excludedWidgetId) {
+        long endZ = startFromZ;
+
+        for (Map.Entry<Long, Widget> entry : widgetsByZ.tailMap(startFromZ, true).entrySet()) {
+            if (entry.getKey() != endZ || Objects.equals(entry.getValue().getWidgetId(), excludedWidgetId)) {
+                break;
+            }
+            endZ++;
+        }
+
+        if (endZ == startFromZ) {
+            return 0;
+        }
+
+        NavigableMap<Long, Widget> run = widgetsByZ.subMap(startFromZ, true, endZ, false);
+        List<Widget> shifted = new ArrayList<>(run.size());
+
+        run.values().forEach(widget -> shifted.add(widget.withCoordinateZ(widget.getCoordinateZ() + 1)));
+        run.clear();
+        shifted.forEach(this::store);
+        changeListener.moved(startFromZ + 1, endZ);
+
+        return shifted.size();
+    }
+
+    private void renumber(long step) {
+        List<Widget> ordered = new ArrayList<>(widgetsByZ.values());
+        long z = 0;
+
+        widgetsByZ.clear();
+        for (Widget widget : ordered) {
+            store(widget.withCoordinateZ(z));
+            z += step;
+        }
+        if (!ordered.isEmpty()) {
+            changeListener.moved(0, z - step);
+        }
+    }
+
+    private List<Widget> find(WidgetFilter filter) {
+        if (!filter.isBounded()) {
+            return widgetsByZ.values().stream()
+                .filter(filter::test)
+                .collect(Collectors.toList());
+        }
+
+        WidgetScanEvent event = new WidgetScanEvent();
+
+        event.begin();
+        List<Widget> candidates = spatialIndex.find(filter.getMaxCoordinateX(), filter.getMaxCoordinateY());
+        List<Widget> widgets = candidates.stream()
+            .filter(filter::test)
+            .sorted(Comparator.comparingLong(Widget::getCoordinateZ))
+            .collect(Collectors.toList());
+
+        WidgetMetrics.scanned(event, "memory", filter, candidates.size(), widgets.size(), false);
+        return widgets;
+    }
+
+    private List<Widget> find(WidgetFilter filter, long offset, int limit) {
+        if (!filter.isBounded()) {
+            return widgetsByZ.values().stream()
+                .filter(filter::test)
+                .skip(offset)
+                .limit(limit)
+                .collect(Collectors.toList());
+        }
+
+        WidgetScanEvent event = new WidgetScanEvent();
+
+        event.begin();
+        List<Widget> candidates = spatialIndex.find(filter.getMaxCoordinateX(), filter.getMaxCoordinateY());
+        List<Widget> widgets = WidgetSelection.lowestByZ(candidates.stream().filter(filter::test), offset, limit);
+
+        WidgetMetrics.scanned(event, "memory", filter, candidates.size(), widgets.size(), false);
+        return widgets;
+    }
+
+    private List<Widget> findAfter(WidgetFilter filter, Long afterZ, int limit) {
+        if (!filter.isBounded()) {
+            Collection<Widget> tail = Objects.isNull(afterZ) ?
+                widgetsByZ.values() :
+                widgetsByZ.tailMap(afterZ, false).values();
+
+            return tail.stream()
+                .filter(filter::test)
+                .limit(limit)
+                .collect(Collectors.toList());
+        }
+
+        WidgetScanEvent event = new WidgetScanEvent();
+
+        event.begin();
+        List<Widget> candidates = spatialIndex.find(filter.getMaxCoordinateX(), filter.getMaxCoordinateY());
+        List<Widget> widgets = WidgetSelection.lowestByZ(candidates.stream()
+            .filter(widget -> Objects.isNull(afterZ) || widget.getCoordinateZ() > afterZ)
+            .filter(filter::test), 0, limit);
+
+        WidgetMetrics.scanned(event, "memory", filter, candidates.size(), widgets.size(), false);
+        return widgets;
+    }
+
+    /**
+     * Replaces the widget and its index entries atomically with respect to other writes of the same widget.
+     */
+    private Widget put(UUID widgetId, UnaryOperator<Widget> write) {
+        Widget stored = widgets.compute(widgetId, (id, previous) -> {
+            Widget widget = write.apply(previous);
+
+            if (Objects.nonNull(previous)) {
+                if (!Objects.equals(previous.getCoordinateZ(), widget.getCoordinateZ())) {
+                    unindexZ(previous);
+                }
+                spatialIndex.move(previous, widget);
+            } else {
+                spatialIndex.add(widget);
+            }
+            widgetsByZ.put(widget.getCoordinateZ(), widget);
+
+            return widget;
+        });
+        onChange.accept(widgetId);
+
+        return stored;
+    }
+
+    /**
+     * @return whether the widget was stored; the listeners are told only then
+     */
+    private boolean remove(UUID widgetId) {
+        Widget[] removed = new Widget[1];
+
+        widgets.computeIfPresent(widgetId, (id, previous) -> {
+            unindex(previous);
+            removed[0] = previous;
+            return null;
+        });
+        if (Objects.isNull(removed[0])) {
+            return false;
+        }
+        onChange.accept(widgetId);
+
+        return true;
+    }
+
+    /**
+     * Writes the widget to the id map and both indexes, replacing entries of the same widget
+     * at the same coordinates.
+     */
+    private void store(Widget widget) {
+        widgets.put(widget.getWidgetId(), widget);
+        widgetsByZ.put(widget.getCoordinateZ(), widget);
+        spatialIndex.add(widget);
+        onChange.accept(widget.getWidgetId());
+    }
+
+    private void unindex(Widget widget) {
+        unindexZ(widget);
+        spatialIndex.remove(widget);
+    }
+
+    /**
+     * Drops the Z entry of the widget unless it has already been taken over by another widget
+     * (a shift may move a widget into the slot of the one being updated).
+     */
+    private void unindexZ(Widget widget) {
+        widgetsByZ.computeIfPresent(widget.getCoordinateZ(),
+            (z, indexed) -> Objects.equals(indexed.getWidgetId(), widget.getWidgetId()) ? null : indexed);
+    }
+
+    private <R> R setReadLock(Supplier<R> readWidgets) {
+        lock.readLock().lock();
+        try {
+            return readWidgets.get();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private static Widget convertToWidget(CreateWidget request) {
-        return Widget.builder()
-            .widgetId(request.getWidgetId())
-            .widgetName(request.getWidgetName())
-            .coordinateX(request.getCoordinateX())
-            .coordinateY(request.getCoordinateY())
-            .coordinateZ(request.getCoordinateZ())
-            .height(request.getHeight())
-            .width(request.getWidth())
-            .updatedAt(request.getUpdatedAt())
-            .createdAt(request.getCreatedAt())
-            .build();
-    }
-
-    private static Widget convertToWidget(UpdateWidget request) {
-        return Widget.builder()
-            .widgetId(request.getWidgetId())
-            .widgetName(request.getWidgetName())
-            .coordinateX(request.getCoordinateX())
-            .coordinateY(request.getCoordinateY())
-            .coordinateZ(request.getCoordinateZ())
-            .updatedAt(request.getUpdatedAt())
-            .height(request.getHeight())
-            .width(request.getWidth())
-            .build();
+    private <R> R setWriteLock(Supplier<R> manageWidgets) {
+        lock.writeLock().lock();
+        try {
+            return manageWidgets.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 }
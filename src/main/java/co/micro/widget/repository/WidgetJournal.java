@@ -0,0 +1,431 @@
+package co.micro.widget.repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import co.micro.widget.entity.Widget;
+
+
+/**
+ * Append-only log of widget states in memory-mapped segments, compacted by snapshots.
+ * <p>
+ * Files are numbered: {@code widgets-N.snapshot} holds every widget as of the start of {@code widgets-N.log},
+ * and the logs numbered from N on hold the changes since. Recovery loads the newest snapshot and replays those logs,
+ * so it reads the changes of one snapshot interval rather than the full history. Each record carries the whole state
+ * of one widget (or its deletion), so replaying a record twice is harmless.
+ * <p>
+ * A record is {@code [payload length][CRC32 of payload][payload]}. Segments are zero-filled when created, and replay
+ * of a segment stops at the first empty or damaged record, which is where a crash cut it.
+ */
+final class WidgetJournal implements Closeable {
+
+    private static final Pattern FILE_NAME = Pattern.compile("widgets-(\\d+)\\.(log|snapshot)");
+    private static final String LOG = "log";
+    private static final String SNAPSHOT = "snapshot";
+
+    private static final int HEADER = Integer.BYTES * 2;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final Object snapshotLock = new Object();
+
+    private final Object forceLock = new Object();
+
+    /**
+     * Segment being appended to; {@code null} until the first snapshot opens the journal and after closing.
+     */
+    private volatile MappedByteBuffer segment;
+
+    private volatile long logNumber;
+
+    private volatile long snapshotNumber;
+
+    /**
+     * Bytes appended over all segments: the position writers wait on for group commit.
+     */
+    private volatile long appended;
+
+    private long appendedAtSnapshot = -1;
+
+    private long forced;
+
+    private ByteBuffer payload = ByteBuffer.allocate(256);
+
+    WidgetJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads the widgets stored by the newest snapshot and the logs after it. The journal stays closed to writes
+     * until the next {@link #snapshot}.
+     */
+    Map<UUID, Widget> recover() throws IOException {
+        Files.createDirectories(directory);
+
+        Map<UUID, Widget> widgets = new HashMap<>();
+        long snapshot = numbers(SNAPSHOT).stream().reduce(0L, Math::max);
+        List<Long> logs = numbers(LOG);
+
+        if (snapshot > 0) {
+            readSnapshot(path(snapshot, SNAPSHOT), widgets);
+        }
+        for (long number : logs) {
+            if (number >= snapshot) {
+                read(path(number, LOG), buffer -> readRecords(buffer, widgets));
+            }
+        }
+
+        snapshotNumber = snapshot;
+        logNumber = logs.stream().reduce(snapshot, Math::max);
+
+        return widgets;
+    }
+
+    /**
+     * Appends the state of the widget, or its deletion when the state is empty. The state is read under the append
+     * lock, so the last record of a widget always carries its latest state however writers interleave.
+     *
+     * @return the position to {@link #sync} on for this record to be durable, -1 while the journal is closed
+     */
+    synchronized long append(UUID widgetId, Supplier<Optional<Widget>> state) throws IOException {
+        if (Objects.isNull(segment)) {
+            return -1;
+        }
+
+        payload = encode(payload, widgetId, state.get().orElse(null));
+
+        int length = HEADER + payload.remaining();
+
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Journal record of widget " + widgetId + " exceeds the segment size");
+        }
+        if (segment.remaining() < length) {
+            rotate();
+        }
+
+        putRecord(segment, payload);
+        appended += length;
+
+        return appended;
+    }
+
+    /**
+     * Returns once everything up to the position is on disk. Callers arriving while a force runs wait for it and
+     * are usually covered by the next one, so concurrent writers share forces.
+     */
+    void sync(long position) {
+        synchronized (forceLock) {
+            if (forced >= position) {
+                return;
+            }
+
+            long target = appended;
+            MappedByteBuffer current = segment;
+
+            if (Objects.nonNull(current)) {
+                current.force();
+            }
+            forced = target;
+        }
+    }
+
+    void force() {
+        sync(appended);
+    }
+
+    long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Whether a log has been started since the last snapshot, i.e. a segment filled up.
+     */
+    boolean isSnapshotDue() {
+        return logNumber > snapshotNumber;
+    }
+
+    /**
+     * Starts a new log, writes the widgets as the snapshot preceding it and deletes the files it supersedes.
+     * The widgets are read after the new log is started, so whatever they miss is in that log.
+     * Does nothing if nothing has been appended since the last snapshot.
+     */
+    void snapshot(Supplier<Collection<Widget>> widgets) throws IOException {
+        synchronized (snapshotLock) {
+            long number;
+
+            synchronized (this) {
+                if (appended == appendedAtSnapshot) {
+                    return;
+                }
+                rotate();
+                number = logNumber;
+                appendedAtSnapshot = appended;
+            }
+
+            Path path = path(number, SNAPSHOT);
+            Path temporary = directory.resolve(path.getFileName() + ".tmp");
+
+            writeSnapshot(temporary, widgets.get());
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            snapshotNumber = number;
+
+            for (String kind : List.of(LOG, SNAPSHOT)) {
+                for (long superseded : numbers(kind)) {
+                    if (superseded < number) {
+                        Files.deleteIfExists(path(superseded, kind));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (Objects.nonNull(segment)) {
+            segment.force();
+            segment = null;
+        }
+    }
+
+    /**
+     * Forces the current segment and continues in a new one, so the logs before the new one are complete on disk.
+     */
+    private void rotate() throws IOException {
+        if (Objects.nonNull(segment)) {
+            segment.force();
+            synchronized (forceLock) {
+                forced = Math.max(forced, appended);
+            }
+        }
+
+        long number = logNumber + 1;
+
+        try (FileChannel channel = FileChannel.open(path(number, LOG),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        logNumber = number;
+    }
+
+    private void writeSnapshot(Path path, Collection<Widget> widgets) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            ByteBuffer record = ByteBuffer.allocate(256);
+
+            buffer.putInt(widgets.size());
+            for (Widget widget : widgets) {
+                record = encode(record, widget.getWidgetId(), widget);
+
+                int length = HEADER + record.remaining();
+
+                if (buffer.remaining() < length) {
+                    drain(channel, buffer);
+                    if (buffer.capacity() < length) {
+                        buffer = ByteBuffer.allocate(length);
+                    }
+                }
+                putRecord(buffer, record);
+            }
+            drain(channel, buffer);
+            channel.force(true);
+        }
+    }
+
+    private void readSnapshot(Path path, Map<UUID, Widget> widgets) throws IOException {
+        read(path, buffer -> {
+            int count = buffer.getInt();
+
+            if (readRecords(buffer, widgets) != count) {
+                throw new IllegalStateException("Journal snapshot " + path + " is damaged");
+            }
+        });
+    }
+
+    private List<Long> numbers(String kind) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .map(file -> FILE_NAME.matcher(file.getFileName().toString()))
+                .filter(Matcher::matches)
+                .filter(matcher -> matcher.group(2).equals(kind))
+                .map(matcher -> Long.parseLong(matcher.group(1)))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    private Path path(long number, String kind) {
+        return directory.resolve("widgets-" + number + "." + kind);
+    }
+
+    private static void read(Path path, FileReader reader) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            reader.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int readRecords(ByteBuffer buffer, Map<UUID, Widget> widgets) {
+        int count = 0;
+
+        while (buffer.remaining() >= HEADER) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            ByteBuffer record = buffer.slice().limit(length);
+            CRC32 crc = new CRC32();
+
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            apply(record, widgets);
+            buffer.position(buffer.position() + length);
+            count++;
+        }
+
+        return count;
+    }
+
+    private static void putRecord(ByteBuffer target, ByteBuffer record) {
+        CRC32 crc = new CRC32();
+
+        crc.update(record.duplicate());
+        target.putInt(record.remaining()).putInt((int) crc.getValue()).put(record);
+    }
+
+    /**
+     * Writes the record into the buffer, or into a larger one if it does not fit, and returns it ready for reading.
+     */
+    private static ByteBuffer encode(ByteBuffer buffer, UUID widgetId, Widget widget) {
+        byte[] name = Objects.nonNull(widget) && Objects.nonNull(widget.getWidgetName()) ?
+            widget.getWidgetName().getBytes(StandardCharsets.UTF_8) :
+            new byte[0];
+        int length = 1 + Long.BYTES * 2 + 1 + Long.BYTES * 7 + Integer.BYTES + name.length;
+        ByteBuffer record = buffer.capacity() < length ? ByteBuffer.allocate(length) : buffer;
+
+        record.clear();
+        record.put(Objects.isNull(widget) ? DELETE : PUT)
+            .putLong(widgetId.getMostSignificantBits())
+            .putLong(widgetId.getLeastSignificantBits());
+
+        if (Objects.nonNull(widget)) {
+            Long[] values = values(widget);
+            byte present = 0;
+
+            for (int i = 0; i < values.length; i++) {
+                if (Objects.nonNull(values[i])) {
+                    present |= 1 << i;
+                }
+            }
+            record.put(present);
+            for (Long value : values) {
+                if (Objects.nonNull(value)) {
+                    record.putLong(value);
+                }
+            }
+            record.putInt(Objects.isNull(widget.getWidgetName()) ? -1 : name.length).put(name);
+        }
+
+        return record.flip();
+    }
+
+    private static void apply(ByteBuffer record, Map<UUID, Widget> widgets) {
+        byte type = record.get();
+        UUID widgetId = new UUID(record.getLong(), record.getLong());
+
+        if (type == DELETE) {
+            widgets.remove(widgetId);
+            return;
+        }
+
+        byte present = record.get();
+        Long[] values = new Long[7];
+
+        for (int i = 0; i < values.length; i++) {
+            if ((present & 1 << i) != 0) {
+                values[i] = record.getLong();
+            }
+        }
+
+        int nameLength = record.getInt();
+        String name = null;
+
+        if (nameLength >= 0) {
+            byte[] bytes = new byte[nameLength];
+
+            record.get(bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        widgets.put(widgetId, Widget.builder()
+            .widgetId(widgetId)
+            .widgetName(name)
+            .coordinateX(values[0])
+            .coordinateY(values[1])
+            .coordinateZ(values[2])
+            .width(values[3])
+            .height(values[4])
+            .createdAt(values[5])
+            .updatedAt(values[6])
+            .build());
+    }
+
+    private static Long[] values(Widget widget) {
+        return new Long[]{
+            widget.getCoordinateX(),
+            widget.getCoordinateY(),
+            widget.getCoordinateZ(),
+            widget.getWidth(),
+            widget.getHeight(),
+            widget.getCreatedAt(),
+            widget.getUpdatedAt()
+        };
+    }
+
+    @FunctionalInterface
+    private interface FileReader {
+
+        void read(ByteBuffer buffer) throws IOException;
+    }
+}
@@ -0,0 +1,124 @@
+package co.micro.widget.repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import co.micro.widget.entity.Widget;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+
+/**
+ * In-memory repository made durable by a {@link WidgetJournal} instead of H2: every change is appended to
+ * a memory-mapped log before the write returns, and the store is snapshotted every {@code snapshot-interval-ms}
+ * or as soon as a log segment fills up. On startup the newest snapshot and the logs after it are replayed.
+ * How often the log is forced to disk is set by {@link JournalFsync}.
+ */
+@Slf4j
+@Repository
+@Primary
+@ConditionalOnProperty(name = "widget.repository", havingValue = "journal")
+public class WidgetJournalManagerRepository extends WidgetInMemoryBackedRepository {
+
+    @Value("${widget.journal.dir:${user.home}/widget-journal}")
+    private String directory;
+
+    @Value("${widget.journal.segment-size:67108864}")
+    private int segmentSize;
+
+    @Value("${widget.journal.fsync:interval}")
+    private JournalFsync fsync;
+
+    @Value("${widget.journal.fsync-interval-ms:100}")
+    private long fsyncIntervalMs;
+
+    @Value("${widget.journal.snapshot-interval-ms:60000}")
+    private long snapshotIntervalMs;
+
+    private final AtomicBoolean snapshotRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "widget-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private WidgetJournal journal;
+
+    @PostConstruct
+    public void start() throws IOException {
+        journal = new WidgetJournal(Paths.get(directory), segmentSize);
+
+        Map<UUID, Widget> widgets = journal.recover();
+
+        memoryRepository.saveWidgets(List.of(), widgets.values());
+        journal.snapshot(memoryRepository::getWidgets);
+        log.info("Recovered {} widgets from the journal in {}", widgets.size(), directory);
+
+        executor.scheduleWithFixedDelay(this::snapshot, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        if (fsync == JournalFsync.INTERVAL) {
+            executor.scheduleWithFixedDelay(journal::force, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        journal.close();
+    }
+
+    /**
+     * Writes a snapshot of the store and drops the log and snapshot files it supersedes.
+     */
+    public void snapshot() {
+        try {
+            journal.snapshot(memoryRepository::getWidgets);
+        } catch (IOException | RuntimeException e) {
+            log.error("Journal snapshot failed, the logs are kept", e);
+        } finally {
+            snapshotRequested.set(false);
+        }
+    }
+
+    /**
+     * Journals the widget before the write returns. A write whose record cannot be appended fails, although
+     * it has already been applied in memory.
+     */
+    @Override
+    protected void onChange(UUID widgetId) {
+        try {
+            journal.append(widgetId, () -> memoryRepository.getWidget(widgetId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (journal.isSnapshotDue() && snapshotRequested.compareAndSet(false, true) && !executor.isShutdown()) {
+            executor.execute(this::snapshot);
+        }
+    }
+
+    /**
+     * With {@link JournalFsync#ALWAYS} waits until the records of the operation are on disk, forcing once
+     * for all the widgets it changed.
+     */
+    @Override
+    protected void afterWrite() {
+        if (fsync == JournalFsync.ALWAYS) {
+            journal.sync(journal.getAppended());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package co.micro.widget.repository;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.IntSupplier;
+
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.trace.WidgetScanEvent;
+import co.micro.widget.trace.WidgetShiftEvent;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+
+/**
+ * Meters and events recorded inside repositories. Repositories are also created outside the application context,
+ * so meters record nowhere until {@link #bindTo} is given the application registry.
+ */
+public final class WidgetMetrics {
+
+    /**
+     * Widgets moved one step up by a single create or move, the cascade of {@link WidgetRepository#shiftCoordinateZ}.
+     */
+    private static volatile DistributionSummary shiftCascade = new CompositeMeterRegistry().summary("widget.shift.cascade");
+
+    private WidgetMetrics() {
+    }
+
+    /**
+     * Registers the meters with the registry and records them there from now on, for use as a
+     * {@link io.micrometer.core.instrument.binder.MeterBinder}.
+     */
+    public static void bindTo(MeterRegistry registry) {
+        shiftCascade = DistributionSummary.builder("widget.shift.cascade")
+            .description("Widgets shifted up by a create or move to an occupied coordinate Z")
+            .baseUnit("widgets")
+            .register(registry);
+    }
+
+    /**
+     * Runs the shift making room for the widget at the coordinate Z and records its cascade.
+     */
+    static void shift(WidgetRepository repository, Long coordinateZ, UUID widgetId, IntSupplier shift) {
+        WidgetShiftEvent event = new WidgetShiftEvent();
+
+        event.begin();
+        int shifted = shift.getAsInt();
+        event.end();
+
+        shiftCascade.record(shifted);
+        if (event.shouldCommit()) {
+            event.repository = repository.getClass().getSimpleName();
+            event.widgetId = Objects.toString(widgetId, null);
+            event.coordinateZ = coordinateZ;
+            event.shifted = shifted;
+            event.commit();
+        }
+    }
+
+    /**
+     * Ends a scan begun by the caller and commits it if a recording wants it.
+     */
+    static void scanned(WidgetScanEvent event, String store, WidgetFilter filter, long scanned, int matched,
+                        boolean fullScan) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.store = store;
+            event.filter = filter.toString();
+            event.scanned = scanned;
+            event.matched = matched;
+            event.fullScan = fullScan;
+            event.commit();
+        }
+    }
+}
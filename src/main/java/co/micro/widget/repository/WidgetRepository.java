@@ -1,7 +1,10 @@
 package co.micro.widget.repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -9,12 +12,18 @@ import java.util.stream.Collectors;
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
 
 
 public interface WidgetRepository {
 
     Widget createWidget(CreateWidget request);
 
+    /**
+     * Replaces the widget. A missing coordinate Z keeps the stored one, so a concurrent shift
+     * is never undone by a write that did not ask to move the widget.
+     */
     Widget updateWidget(UpdateWidget request);
 
     void deleteWidget(UUID widgetId);
@@ -23,6 +32,30 @@ public interface WidgetRepository {
 
     List<Widget> getWidgets();
 
+    /**
+     * Registers a listener told every write once a read would see it: the widgets created, updated or deleted
+     * by id, and the widgets moved by a shift or a renumbering as one range of coordinate Z. Compound writes
+     * report each of their steps.
+     */
+    void addChangeListener(WidgetChangeListener listener);
+
+    /**
+     * @return whether reads see a consistent committed state on their own, so that callers
+     * do not need to hold off writers while reading
+     */
+    default boolean hasLockFreeReads() {
+        return false;
+    }
+
+    /**
+     * @return whether single-widget writes and the compound writes {@link #createWidgetAt},
+     * {@link #updateWidgetAt}, shifts and renumbering are atomic on their own, so that callers
+     * do not need to lock the Z order around them
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
     default Optional<Widget> getWidget(UpdateWidget request) {
         return getWidget(request.getWidgetId());
     }
@@ -34,6 +67,50 @@ public interface WidgetRepository {
             .collect(Collectors.toList());
     }
 
+    /**
+     * @return widgets matching the filter, ordered by coordinate Z
+     */
+    default List<Widget> findInArea(WidgetFilter filter) {
+        return getWidgets().stream()
+            .filter(filter::test)
+            .sorted(Comparator.comparingLong(Widget::getCoordinateZ))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @return a page of the widgets matching the filter, ordered by coordinate Z
+     */
+    default List<Widget> findInArea(WidgetFilter filter, long offset, int limit) {
+        return WidgetSelection.lowestByZ(getWidgets().stream().filter(filter::test), offset, limit);
+    }
+
+    /**
+     * Keyset page: up to {@code limit} widgets matching the filter with coordinate Z above {@code afterZ}
+     * ({@code null} starts from the bottom), ordered by Z.
+     */
+    default List<Widget> findInAreaAfter(WidgetFilter filter, Long afterZ, int limit) {
+        return WidgetSelection.lowestByZ(getWidgets().stream()
+            .filter(widget -> Objects.isNull(afterZ) || widget.getCoordinateZ() > afterZ)
+            .filter(filter::test), 0, limit);
+    }
+
+    /**
+     * @return a page of widgets ordered by coordinate Z
+     */
+    default List<Widget> getWidgets(long offset, int limit) {
+        return WidgetSelection.lowestByZ(getWidgets().stream(), offset, limit);
+    }
+
+    default long countWidgets() {
+        return getWidgets().size();
+    }
+
+    default long countWidgetsBelow(Long z) {
+        return getWidgets().stream()
+            .filter(widget -> widget.getCoordinateZ() < z)
+            .count();
+    }
+
     default Optional<Widget> getWidgetMaxByCoordinateZ() {
         List<Widget> widgets = getWidgets();
 
@@ -42,4 +119,106 @@ public interface WidgetRepository {
                 .max(Comparator.comparingLong(Widget::getCoordinateZ)) :
             Optional.empty();
     }
+
+    /**
+     * Creates the widget at its coordinate Z, shifting the contiguous run there one step up,
+     * or on top of the stack when the coordinate Z is missing.
+     */
+    default Widget createWidgetAt(CreateWidget request) {
+        if (Objects.isNull(request.getCoordinateZ())) {
+            return createWidget(request.withCoordinateZ(getWidgetMaxByCoordinateZ()
+                .map(widget -> widget.getCoordinateZ() + 1)
+                .orElse(Long.valueOf(0))));
+        }
+
+        WidgetMetrics.shift(this, request.getCoordinateZ(), request.getWidgetId(),
+            () -> shiftCoordinateZ(request.getCoordinateZ()));
+
+        return createWidget(request);
+    }
+
+    /**
+     * Moves the widget to its coordinate Z, shifting the contiguous run there one step up.
+     */
+    default Widget updateWidgetAt(UpdateWidget request) {
+        WidgetMetrics.shift(this, request.getCoordinateZ(), request.getWidgetId(),
+            () -> shiftCoordinateZ(request.getCoordinateZ(), request.getWidgetId()));
+
+        return updateWidget(request);
+    }
+
+    /**
+     * Applies the batch with a single reorder pass over the stored widgets, see {@link WidgetBatchPlan}.
+     * Nothing is written when an updated or deleted widget is missing.
+     *
+     * @return updated widgets followed by the created ones, in request order
+     */
+    default List<Widget> applyBatch(WidgetBatch batch) {
+        WidgetBatchPlan plan = WidgetBatchPlan.of(getWidgets(), batch);
+
+        saveWidgets(plan.getDeletedIds(), plan.getWidgets());
+
+        return plan.getResults();
+    }
+
+    /**
+     * Deletes the widgets and then stores the others as given, coordinate Z included. The caller keeps Z unique
+     * across the whole set.
+     */
+    void saveWidgets(Collection<UUID> deletedIds, Collection<Widget> widgets);
+
+    default int shiftCoordinateZ(Long startFromZ) {
+        return shiftCoordinateZ(startFromZ, null);
+    }
+
+    /**
+     * Moves the contiguous run of widgets starting at {@code startFromZ} one step up,
+     * so that {@code startFromZ} becomes free. The excluded widget (the one being moved)
+     * is treated as a gap and never shifted.
+     *
+     * @return number of shifted widgets
+     */
+    default int shiftCoordinateZ(Long startFromZ, UUID excludedWidgetId) {
+        List<Widget> run = new ArrayList<>();
+        long expectedZ = startFromZ;
+
+        for (Widget widget : getWidgets(startFromZ)) {
+            if (widget.getCoordinateZ() != expectedZ || Objects.equals(widget.getWidgetId(), excludedWidgetId)) {
+                break;
+            }
+            run.add(widget);
+            expectedZ++;
+        }
+
+        for (int i = run.size() - 1; i >= 0; i--) {
+            Widget widget = run.get(i);
+            updateWidget(moveTo(widget, widget.getCoordinateZ() + 1));
+        }
+
+        return run.size();
+    }
+
+    /**
+     * Reassigns coordinate Z as {@code position * step}, keeping the order of the widgets.
+     */
+    default void renumberCoordinateZ(long step) {
+        List<Widget> widgets = getWidgets(0, Integer.MAX_VALUE);
+
+        for (int i = 0; i < widgets.size(); i++) {
+            updateWidget(moveTo(widgets.get(i), i * step));
+        }
+    }
+
+    private static UpdateWidget moveTo(Widget widget, Long z) {
+        return UpdateWidget.builder()
+            .widgetId(widget.getWidgetId())
+            .widgetName(widget.getWidgetName())
+            .coordinateX(widget.getCoordinateX())
+            .coordinateY(widget.getCoordinateY())
+            .coordinateZ(z)
+            .height(widget.getHeight())
+            .width(widget.getWidth())
+            .updatedAt(widget.getUpdatedAt())
+            .build();
+    }
 }
@@ -0,0 +1,66 @@
+package co.micro.widget.repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import co.micro.widget.entity.Widget;
+
+
+/**
+ * Page selection by coordinate Z over widgets in no particular order.
+ */
+final class WidgetSelection {
+
+    private static final Comparator<Widget> BY_Z = Comparator.comparingLong(Widget::getCoordinateZ);
+
+    /**
+     * Above this many kept widgets a bounded heap stops paying off against a plain sort.
+     */
+    private static final long MAX_HEAP = 1 << 16;
+
+    private WidgetSelection() {
+    }
+
+    /**
+     * @return widgets ranked {@code offset} to {@code offset + limit - 1} by coordinate Z. Only the lowest
+     * {@code offset + limit} are kept, in a bounded max-heap, so selecting a page of k costs O(n log k)
+     * instead of sorting all n. An empty page is returned when nothing would be kept.
+     */
+    static List<Widget> lowestByZ(Stream<Widget> widgets, long offset, int limit) {
+        long kept = offset + limit;
+
+        if (limit <= 0 || kept <= 0) {
+            return new ArrayList<>();
+        }
+        if (kept > MAX_HEAP) {
+            return widgets
+                .sorted(BY_Z)
+                .skip(offset)
+                .limit(limit)
+                .collect(Collectors.toList());
+        }
+
+        PriorityQueue<Widget> heap = new PriorityQueue<>((int) kept + 1, BY_Z.reversed());
+
+        widgets.forEach(widget -> {
+            if (heap.size() < kept) {
+                heap.add(widget);
+            } else if (widget.getCoordinateZ() < heap.peek().getCoordinateZ()) {
+                heap.poll();
+                heap.add(widget);
+            }
+        });
+
+        List<Widget> page = new ArrayList<>(heap);
+
+        page.sort(BY_Z);
+
+        return offset < page.size() ?
+            new ArrayList<>(page.subList((int) offset, page.size())) :
+            new ArrayList<>();
+    }
+}
@@ -0,0 +1,348 @@
+package co.micro.widget.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
+import org.pcollections.HashTreePMap;
+import org.pcollections.PMap;
+import org.pcollections.PSortedMap;
+import org.pcollections.TreePMap;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+
+/**
+ * Copy-on-write in-memory repository. Every write publishes a new immutable snapshot of the widgets and
+ * the Z index through a volatile reference; snapshots share structure with their predecessors, so a write
+ * costs O(log n) per touched widget. Reads never lock and see either the whole of a write or none of it,
+ * a shift included. Writers are serialized. Area queries scan the Z index, there is no spatial index.
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "widget.repository", havingValue = "snapshot")
+public class WidgetSnapshotManagerRepository implements WidgetRepository {
+
+    private volatile Snapshot snapshot = new Snapshot(HashTreePMap.empty(), TreePMap.empty());
+
+    /**
+     * Told every write once the snapshot holding it is published.
+     */
+    private volatile WidgetChangeListener changeListener = WidgetChangeListener.NONE;
+
+    @Override
+    public synchronized Widget createWidget(CreateWidget request) {
+        Widget widget = WidgetConversions.convertToWidget(request);
+        snapshot = snapshot.put(widget);
+        changeListener.changed(List.of(widget.getWidgetId()));
+
+        return widget;
+    }
+
+    @Override
+    public synchronized Widget updateWidget(UpdateWidget request) {
+        Widget widget = WidgetConversions.merge(
+            snapshot.widgets.get(request.getWidgetId()), WidgetConversions.convertToWidget(request));
+        snapshot = snapshot.put(widget);
+        changeListener.changed(List.of(widget.getWidgetId()));
+
+        return widget;
+    }
+
+    @Override
+    public synchronized void deleteWidget(UUID widgetId) {
+        Snapshot next = snapshot.remove(widgetId);
+
+        if (next != snapshot) {
+            snapshot = next;
+            changeListener.changed(List.of(widgetId));
+        }
+    }
+
+    @Override
+    public void addChangeListener(WidgetChangeListener listener) {
+        changeListener = changeListener.andThen(listener);
+    }
+
+    /**
+     * Shifts and writes in one snapshot, so readers never see the run moved without the widget in its place.
+     */
+    @Override
+    public synchronized Widget createWidgetAt(CreateWidget request) {
+        if (Objects.isNull(request.getCoordinateZ())) {
+            return WidgetRepository.super.createWidgetAt(request);
+        }
+
+        Widget widget = WidgetConversions.convertToWidget(request);
+
+        putAt(widget, null);
+        return widget;
+    }
+
+    @Override
+    public synchronized Widget updateWidgetAt(UpdateWidget request) {
+        Widget widget = WidgetConversions.merge(
+            snapshot.widgets.get(request.getWidgetId()), WidgetConversions.convertToWidget(request));
+
+        putAt(widget, widget.getWidgetId());
+        return widget;
+    }
+
+    @Override
+    public synchronized List<Widget> applyBatch(WidgetBatch batch) {
+        return WidgetRepository.super.applyBatch(batch);
+    }
+
+    /**
+     * Publishes the whole batch as one snapshot.
+     */
+    @Override
+    public synchronized void saveWidgets(Collection<UUID> deletedIds, Collection<Widget> widgets) {
+        Snapshot next = snapshot;
+        List<UUID> removedIds = new ArrayList<>();
+
+        for (UUID widgetId : deletedIds) {
+            Snapshot removed = next.remove(widgetId);
+
+            if (removed != next) {
+                removedIds.add(widgetId);
+                next = removed;
+            }
+        }
+        for (Widget widget : widgets) {
+            next = next.put(widget);
+        }
+        snapshot = next;
+
+        changeListener.changed(Stream.concat(removedIds.stream(), widgets.stream().map(Widget::getWidgetId))
+            .collect(Collectors.toList()));
+    }
+
+    @Override
+    public Optional<Widget> getWidget(UUID widgetId) {
+        return Optional.ofNullable(snapshot.widgets.get(widgetId));
+    }
+
+    @Override
+    public List<Widget> getWidgets() {
+        return new ArrayList<>(snapshot.widgetsByZ.values());
+    }
+
+    @Override
+    public List<Widget> getWidgets(Long startFromZ) {
+        return new ArrayList<>(snapshot.widgetsByZ.tailMap(startFromZ, true).values());
+    }
+
+    @Override
+    public List<Widget> getWidgets(long offset, int limit) {
+        return snapshot.widgetsByZ.values().stream()
+            .skip(offset)
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter) {
+        return snapshot.widgetsByZ.values().stream()
+            .filter(filter::test)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Widget> findInArea(WidgetFilter filter, long offset, int limit) {
+        return snapshot.widgetsByZ.values().stream()
+            .filter(filter::test)
+            .skip(offset)
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Widget> findInAreaAfter(WidgetFilter filter, Long afterZ, int limit) {
+        PSortedMap<Long, Widget> widgetsByZ = snapshot.widgetsByZ;
+        Collection<Widget> tail = Objects.isNull(afterZ) ?
+            widgetsByZ.values() :
+            widgetsByZ.tailMap(afterZ, false).values();
+
+        return tail.stream()
+            .filter(filter::test)
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public long countWidgets() {
+        return snapshot.widgets.size();
+    }
+
+    @Override
+    public long countWidgetsBelow(Long z) {
+        return snapshot.widgetsByZ.headMap(z, false).size();
+    }
+
+    @Override
+    public Optional<Widget> getWidgetMaxByCoordinateZ() {
+        PSortedMap<Long, Widget> widgetsByZ = snapshot.widgetsByZ;
+
+        return !widgetsByZ.isEmpty() ?
+            Optional.of(widgetsByZ.lastEntry().getValue()) :
+            Optional.empty();
+    }
+
+    @Override
+    public synchronized int shiftCoordinateZ(Long startFromZ, UUID excludedWidgetId) {
+        List<UUID> shiftedIds = new ArrayList<>();
+
+        snapshot = snapshot.shift(startFromZ, excludedWidgetId, shiftedIds);
+        moved(startFromZ, shiftedIds.size());
+
+        return shiftedIds.size();
+    }
+
+    @Override
+    public synchronized void renumberCoordinateZ(long step) {
+        Map<Long, Widget> renumberedByZ = new HashMap<>();
+        Map<UUID, Widget> renumbered = new HashMap<>();
+        long z = 0;
+
+        for (Widget widget : snapshot.widgetsByZ.values()) {
+            Widget moved = widget.withCoordinateZ(z);
+            renumberedByZ.put(moved.getCoordinateZ(), moved);
+            renumbered.put(moved.getWidgetId(), moved);
+            z += step;
+        }
+
+        snapshot = new Snapshot(HashTreePMap.from(renumbered), TreePMap.from(renumberedByZ));
+        if (!renumbered.isEmpty()) {
+            changeListener.moved(0, z - step);
+        }
+    }
+
+    /**
+     * Writes the widget at its coordinate Z after shifting the run there, publishing both as one snapshot.
+     */
+    private void putAt(Widget widget, UUID excludedWidgetId) {
+        List<UUID> shiftedIds = new ArrayList<>();
+        Snapshot[] next = {snapshot};
+
+        WidgetMetrics.shift(this, widget.getCoordinateZ(), widget.getWidgetId(), () -> {
+            next[0] = next[0].shift(widget.getCoordinateZ(), excludedWidgetId, shiftedIds);
+            return shiftedIds.size();
+        });
+        snapshot = next[0].put(widget);
+
+        moved(widget.getCoordinateZ(), shiftedIds.size());
+        changeListener.changed(List.of(widget.getWidgetId()));
+    }
+
+    /**
+     * Reports the run of {@code shifted} widgets that started at the coordinate Z and is now one step up.
+     */
+    private void moved(long startFromZ, int shifted) {
+        if (shifted > 0) {
+            changeListener.moved(startFromZ + 1, startFromZ + shifted);
+        }
+    }
+
+    @Override
+    public boolean hasLockFreeReads() {
+        return true;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    private static final class Snapshot {
+
+        private final PMap<UUID, Widget> widgets;
+
+        /**
+         * Z is unique per widget, see {@link WidgetInMemoryManagerRepository}.
+         */
+        private final PSortedMap<Long, Widget> widgetsByZ;
+
+        private Snapshot(PMap<UUID, Widget> widgets, PSortedMap<Long, Widget> widgetsByZ) {
+            this.widgets = widgets;
+            this.widgetsByZ = widgetsByZ;
+        }
+
+        private Snapshot put(Widget widget) {
+            Widget previous = widgets.get(widget.getWidgetId());
+
+            return new Snapshot(
+                widgets.plus(widget.getWidgetId(), widget),
+                unindex(previous).plus(widget.getCoordinateZ(), widget));
+        }
+
+        /**
+         * @param shiftedIds collects the ids of the widgets moved
+         * @return the snapshot with the contiguous run at {@code startFromZ} one step up, see
+         * {@link WidgetRepository#shiftCoordinateZ}
+         */
+        private Snapshot shift(long startFromZ, UUID excludedWidgetId, Collection<UUID> shiftedIds) {
+            long endZ = startFromZ;
+
+            for (Map.Entry<Long, Widget> entry : widgetsByZ.tailMap(startFromZ, true).entrySet()) {
+                if (entry.getKey() != endZ || Objects.equals(entry.getValue().getWidgetId(), excludedWidgetId)) {
+                    break;
+                }
+                endZ++;
+            }
+
+            if (endZ == startFromZ) {
+                return this;
+            }
+
+            PSortedMap<Long, Widget> run = widgetsByZ.subMap(startFromZ, true, endZ, false);
+            Map<Long, Widget> shiftedByZ = new HashMap<>();
+            Map<UUID, Widget> shifted = new HashMap<>();
+
+            run.values().forEach(widget -> {
+                Widget moved = widget.withCoordinateZ(widget.getCoordinateZ() + 1);
+                shiftedByZ.put(moved.getCoordinateZ(), moved);
+                shifted.put(moved.getWidgetId(), moved);
+            });
+            shiftedIds.addAll(shifted.keySet());
+
+            return new Snapshot(widgets.plusAll(shifted), widgetsByZ.minusAll(run.keySet()).plusAll(shiftedByZ));
+        }
+
+        private Snapshot remove(UUID widgetId) {
+            Widget previous = widgets.get(widgetId);
+
+            return Objects.nonNull(previous) ?
+                new Snapshot(widgets.minus(widgetId), unindex(previous)) :
+                this;
+        }
+
+        /**
+         * Drops the Z entry of the widget unless a shift has already moved another widget into it.
+         */
+        private PSortedMap<Long, Widget> unindex(Widget widget) {
+            if (Objects.isNull(widget)) {
+                return widgetsByZ;
+            }
+
+            Widget indexed = widgetsByZ.get(widget.getCoordinateZ());
+
+            return Objects.nonNull(indexed) && Objects.equals(indexed.getWidgetId(), widget.getWidgetId()) ?
+                widgetsByZ.minus(widget.getCoordinateZ()) :
+                widgetsByZ;
+        }
+    }
+}
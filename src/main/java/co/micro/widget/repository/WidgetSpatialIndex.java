@@ -0,0 +1,109 @@
+package co.micro.widget.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import co.micro.widget.entity.Widget;
+
+
+/**
+ * Uniform grid over coordinates X and Y. Columns and cells are kept in sorted maps, so an area query
+ * visits only the occupied cells in range. Queries run without locking over concurrent maps,
+ * updates are serialized on the index.
+ */
+class WidgetSpatialIndex {
+
+    private final long cellSize;
+
+    private final NavigableMap<Long, NavigableMap<Long, Map<UUID, Widget>>> columns = new ConcurrentSkipListMap<>();
+
+    WidgetSpatialIndex(long cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    synchronized void add(Widget widget) {
+        columns.computeIfAbsent(cell(widget.getCoordinateX()), x -> new ConcurrentSkipListMap<>())
+            .computeIfAbsent(cell(widget.getCoordinateY()), y -> new ConcurrentHashMap<>())
+            .put(widget.getWidgetId(), widget);
+    }
+
+    /**
+     * Adds the widgets in parallel; the concurrent maps settle racing inserts of the same column or cell.
+     */
+    synchronized void addAll(Collection<Widget> widgets) {
+        widgets.parallelStream().forEach(widget -> columns
+            .computeIfAbsent(cell(widget.getCoordinateX()), x -> new ConcurrentSkipListMap<>())
+            .computeIfAbsent(cell(widget.getCoordinateY()), y -> new ConcurrentHashMap<>())
+            .put(widget.getWidgetId(), widget));
+    }
+
+    /**
+     * Replaces the previous state of a widget. A widget staying in its cell is swapped in place,
+     * so concurrent queries never miss it.
+     */
+    synchronized void move(Widget previous, Widget widget) {
+        if (!Objects.equals(cell(previous.getCoordinateX()), cell(widget.getCoordinateX())) ||
+            !Objects.equals(cell(previous.getCoordinateY()), cell(widget.getCoordinateY()))) {
+            remove(previous);
+        }
+        add(widget);
+    }
+
+    synchronized void remove(Widget widget) {
+        Long x = cell(widget.getCoordinateX());
+        NavigableMap<Long, Map<UUID, Widget>> column = columns.get(x);
+
+        if (Objects.isNull(column)) {
+            return;
+        }
+
+        Long y = cell(widget.getCoordinateY());
+        Map<UUID, Widget> cell = column.get(y);
+
+        if (Objects.nonNull(cell) && Objects.nonNull(cell.remove(widget.getWidgetId())) && cell.isEmpty()) {
+            column.remove(y);
+            if (column.isEmpty()) {
+                columns.remove(x);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        columns.clear();
+    }
+
+    /**
+     * @return widgets of the cells overlapping {@code [0, maxCoordinateX] x [0, maxCoordinateY]}, a missing
+     * bound leaves the axis unrestricted. Widgets of the border cells may lie outside the area.
+     */
+    List<Widget> find(Long maxCoordinateX, Long maxCoordinateY) {
+        List<Widget> candidates = new ArrayList<>();
+
+        range(columns, maxCoordinateX).values()
+            .forEach(column -> range(column, maxCoordinateY).values()
+                .forEach(cell -> candidates.addAll(cell.values())));
+
+        return candidates;
+    }
+
+    private <V> NavigableMap<Long, V> range(NavigableMap<Long, V> cells, Long max) {
+        if (Objects.isNull(max)) {
+            return cells;
+        }
+        return max < 0 ?
+            Collections.emptyNavigableMap() :
+            cells.subMap(0L, true, cell(max), true);
+    }
+
+    private Long cell(Long coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+}
@@ -0,0 +1,132 @@
+package co.micro.widget.repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import co.micro.widget.entity.Widget;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+
+
+/**
+ * Write-behind repository: every read and write is served by an in-memory repository, and the ids of the
+ * widgets it changes are collected. A background writer flushes them to H2 in one batch per interval, or
+ * sooner once {@code max-pending} widgets are waiting, writing the latest state of each widget (several writes
+ * of a widget between flushes cost one row write). The remaining changes are flushed on shutdown, and the table
+ * is loaded back into memory on startup.
+ */
+@Slf4j
+@Repository
+@Primary
+@ConditionalOnProperty(name = "widget.repository", havingValue = "write-behind")
+public class WidgetWriteBehindManagerRepository extends WidgetInMemoryBackedRepository {
+
+    @Autowired
+    private WidgetH2ManagerRepository h2Repository;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${widget.write-behind.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${widget.write-behind.max-pending:10000}")
+    private int maxPending;
+
+    @Value("${widget.write-behind.fetch-size:10000}")
+    private int fetchSize;
+
+    private final Set<UUID> pendingIds = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "widget-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Loads the H2 table into memory before the repository serves requests. It runs while the application context
+     * starts, so the web server accepts connections only once the store is warm.
+     */
+    @PostConstruct
+    public void start() {
+        long startedAt = System.currentTimeMillis();
+        List<Widget> widgets = h2Repository.loadWidgets(fetchSize);
+
+        memoryRepository.load(widgets);
+        log.info("Loaded {} widgets from H2 in {} ms", widgets.size(), System.currentTimeMillis() - startedAt);
+
+        writer.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flushes the rest when the context closes, before any bean is destroyed: the H2 bean is called through
+     * its proxies, which may no longer resolve their aspects once destruction has begun.
+     */
+    @EventListener
+    public void stop(ContextClosedEvent event) throws InterruptedException {
+        if (event.getApplicationContext() != applicationContext) {
+            return;
+        }
+
+        writer.shutdown();
+        writer.awaitTermination(flushIntervalMs * 10, TimeUnit.MILLISECONDS);
+        flush();
+    }
+
+    /**
+     * Writes the pending widgets to H2: the ones still in memory are merged, the others deleted.
+     * An id changed again while flushing is pending again, so H2 converges on the memory state.
+     * On failure the ids are kept for the next flush.
+     */
+    public synchronized void flush() {
+        flushRequested.set(false);
+
+        List<UUID> deletedIds = new ArrayList<>();
+        List<Widget> widgets = new ArrayList<>();
+
+        for (UUID widgetId : pendingIds) {
+            pendingIds.remove(widgetId);
+            memoryRepository.getWidget(widgetId)
+                .ifPresentOrElse(widgets::add, () -> deletedIds.add(widgetId));
+        }
+
+        if (deletedIds.isEmpty() && widgets.isEmpty()) {
+            return;
+        }
+
+        try {
+            h2Repository.saveWidgets(deletedIds, widgets);
+        } catch (RuntimeException e) {
+            log.error("Write-behind flush of {} widgets failed, retrying", deletedIds.size() + widgets.size(), e);
+            pendingIds.addAll(deletedIds);
+            widgets.forEach(widget -> pendingIds.add(widget.getWidgetId()));
+        }
+    }
+
+    @Override
+    protected void onChange(UUID widgetId) {
+        pendingIds.add(widgetId);
+
+        if (pendingIds.size() >= maxPending && flushRequested.compareAndSet(false, true) && !writer.isShutdown()) {
+            writer.execute(this::flush);
+        }
+    }
+}
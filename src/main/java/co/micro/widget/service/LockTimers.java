@@ -0,0 +1,59 @@
+package co.micro.widget.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+import co.micro.widget.trace.WidgetLockEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+
+/**
+ * Wait and hold times of one kind of lock: {@code widget.lock.wait} from the request to acquiring it,
+ * {@code widget.lock.hold} from acquiring to releasing it. Waits are also recorded as {@link WidgetLockEvent}.
+ */
+final class LockTimers {
+
+    private final String name;
+    private final String mode;
+    private final Timer wait;
+    private final Timer hold;
+
+    LockTimers(MeterRegistry registry, String lock, String mode) {
+        this.name = lock;
+        this.mode = mode;
+        this.wait = Timer.builder("widget.lock.wait")
+            .description("Time spent waiting for a lock")
+            .tag("lock", lock)
+            .tag("mode", mode)
+            .register(registry);
+        this.hold = Timer.builder("widget.lock.hold")
+            .description("Time a lock is held")
+            .tag("lock", lock)
+            .tag("mode", mode)
+            .register(registry);
+    }
+
+    <R> R call(Lock lock, Supplier<R> action) {
+        WidgetLockEvent event = new WidgetLockEvent();
+        long requested = System.nanoTime();
+
+        event.begin();
+        lock.lock();
+        long acquired = System.nanoTime();
+        event.end();
+        if (event.shouldCommit()) {
+            event.lock = name;
+            event.mode = mode;
+            event.commit();
+        }
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+            wait.record(acquired - requested, TimeUnit.NANOSECONDS);
+            hold.record(System.nanoTime() - acquired, TimeUnit.NANOSECONDS);
+        }
+    }
+}
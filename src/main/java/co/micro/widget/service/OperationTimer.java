@@ -0,0 +1,51 @@
+package co.micro.widget.service;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import co.micro.widget.trace.WidgetOperationEvent;
+import co.micro.widget.trace.WidgetTrace;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+
+/**
+ * One service operation: its {@code widget.operation} timer and {@link WidgetOperationEvent}. The event
+ * fields are only filled in when a recording wants the event.
+ */
+final class OperationTimer {
+
+    private final String operation;
+    private final Timer timer;
+
+    OperationTimer(MeterRegistry registry, String operation) {
+        this.operation = operation;
+        this.timer = Timer.builder("widget.operation")
+            .description("Widget service operations")
+            .tag("operation", operation)
+            .register(registry);
+    }
+
+    <R> R record(UUID widgetId, Supplier<R> execute) {
+        WidgetOperationEvent event = new WidgetOperationEvent();
+        long start = System.nanoTime();
+        R result = null;
+
+        event.begin();
+        try {
+            result = execute.get();
+            return result;
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.widgetId = Objects.toString(widgetId, null);
+                event.widgets = WidgetTrace.countWidgets(result);
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package co.micro.widget.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.repository.WidgetChangeListener;
+import co.micro.widget.repository.WidgetRepository;
+import org.pcollections.TreePMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+
+/**
+ * Z handling for {@link ZAllocation#SPARSE}. Widgets are stored with keys spaced {@link #GAP} apart,
+ * the user-visible Z is the number of widgets below. Callers of the writes hold the service write lock.
+ * <p>
+ * The allocator keeps the stored keys in a persistent sorted map annotated with sizes, so that ranking a widget
+ * and finding the keys around a position take logarithmic time whatever the repository. Its own writes are
+ * indexed as they are made, so that the writes of a transaction see each other; the change listener brings in
+ * the rest, once committed.
+ */
+@Component
+class SparseZAllocator {
+
+    static final long GAP = 1L << 32;
+
+    @Autowired
+    private WidgetRepository widgetRepository;
+
+    /**
+     * Stored key of every widget.
+     */
+    private Map<UUID, Long> keys = new HashMap<>();
+
+    /**
+     * Number of widgets stored at each key. A key is held by one widget but for the moment a write hands it
+     * over, when the widget taking it may be told before the one leaving it.
+     */
+    private volatile TreePMap<Long, Integer> sortedKeys = TreePMap.empty();
+
+    /**
+     * Ranges of keys moved so far, to tell whether the listener has already applied a renumbering.
+     */
+    private long moves;
+
+    /**
+     * Loads the index. Called once, before requests are served.
+     */
+    void start() {
+        widgetRepository.addChangeListener(new WidgetChangeListener() {
+            @Override
+            public void changed(Collection<UUID> widgetIds) {
+                widgetIds.forEach(SparseZAllocator.this::indexChanged);
+            }
+
+            @Override
+            public void moved(long fromZ, long toZ) {
+                indexMoved(fromZ, toZ);
+            }
+        });
+        reindex();
+    }
+
+    Widget createWidget(CreateWidget widget) {
+        Long key = Objects.isNull(widget.getCoordinateZ()) ?
+            allocateLast() :
+            allocate(Math.max(widget.getCoordinateZ(), 0), Long.MAX_VALUE);
+
+        return written(widgetRepository.createWidget(widget.withCoordinateZ(key)));
+    }
+
+    /**
+     * @param widget merged changes, carrying the stored key as coordinate Z
+     * @param z      requested position, {@code null} keeps the widget where it is
+     */
+    Widget updateWidget(UpdateWidget widget, Long z) {
+        if (Objects.nonNull(z)) {
+            long rank = Math.max(z, 0);
+            long currentRank = rank(widget.getCoordinateZ());
+
+            if (rank != currentRank) {
+                widget = widget.withCoordinateZ(allocate(rank, currentRank));
+            }
+        }
+
+        return written(widgetRepository.updateWidget(widget));
+    }
+
+    void deleteWidget(UUID widgetId) {
+        widgetRepository.deleteWidget(widgetId);
+        index(widgetId, null);
+    }
+
+    Widget toVisible(Widget widget) {
+        return widget.withCoordinateZ(rank(widget.getCoordinateZ()));
+    }
+
+    /**
+     * @param contiguous whether the widgets are adjacent in the Z order, so that ranks after the first one
+     *                   follow without counting
+     */
+    List<Widget> toVisible(List<Widget> widgets, boolean contiguous) {
+        List<Widget> visible = new ArrayList<>(widgets.size());
+        long rank = 0;
+
+        for (Widget widget : widgets) {
+            rank = visible.isEmpty() || !contiguous ?
+                rank(widget.getCoordinateZ()) :
+                rank + 1;
+            visible.add(widget.withCoordinateZ(rank));
+        }
+
+        return visible;
+    }
+
+    /**
+     * Loads the keys afresh: on startup, and after a transaction rolled back writes already indexed.
+     */
+    synchronized void reindex() {
+        Map<UUID, Long> loaded = new HashMap<>();
+        Map<Long, Integer> counts = new HashMap<>();
+
+        for (Widget widget : widgetRepository.getWidgets()) {
+            loaded.put(widget.getWidgetId(), widget.getCoordinateZ());
+            counts.merge(widget.getCoordinateZ(), 1, Integer::sum);
+        }
+        keys = loaded;
+        sortedKeys = TreePMap.from(counts);
+    }
+
+    private Widget written(Widget widget) {
+        index(widget.getWidgetId(), widget.getCoordinateZ());
+        return toVisible(widget);
+    }
+
+    private long rank(Long key) {
+        return sortedKeys.headMap(key, false).size();
+    }
+
+    /**
+     * @return the key at the position, {@code null} past the last one; found by bisecting the keys,
+     * each step counting a head map
+     */
+    private static Long keyAt(TreePMap<Long, Integer> index, long rank) {
+        if (rank >= index.size()) {
+            return null;
+        }
+
+        long low = index.firstKey();
+        long high = index.lastKey();
+
+        while (low < high) {
+            long middle = (low & high) + ((low ^ high) >> 1);
+
+            if (index.headMap(middle, true).size() > rank) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private synchronized void indexChanged(UUID widgetId) {
+        index(widgetId, widgetRepository.getWidget(widgetId).map(Widget::getCoordinateZ).orElse(null));
+    }
+
+    /**
+     * Re-reads the widgets the repository has moved into the range.
+     */
+    private synchronized void indexMoved(long fromZ, long toZ) {
+        WidgetFilter filter = WidgetFilter.builder().build();
+        long afterZ = fromZ - 1;
+
+        moves++;
+        while (afterZ < toZ) {
+            List<Widget> page = widgetRepository.findInAreaAfter(filter, afterZ, WidgetManagerService.ROW_LIMIT_MAX);
+
+            for (Widget widget : page) {
+                if (widget.getCoordinateZ() > toZ) {
+                    return;
+                }
+                index(widget.getWidgetId(), widget.getCoordinateZ());
+            }
+            if (page.size() < WidgetManagerService.ROW_LIMIT_MAX) {
+                return;
+            }
+            afterZ = page.get(page.size() - 1).getCoordinateZ();
+        }
+    }
+
+    private synchronized void index(UUID widgetId, Long key) {
+        Long previous = Objects.isNull(key) ? keys.remove(widgetId) : keys.put(widgetId, key);
+        TreePMap<Long, Integer> next = sortedKeys;
+
+        if (Objects.equals(previous, key)) {
+            return;
+        }
+        if (Objects.nonNull(previous)) {
+            int count = next.get(previous);
+            next = count > 1 ? next.plus(previous, count - 1) : next.minus(previous);
+        }
+        if (Objects.nonNull(key)) {
+            next = next.plus(key, next.getOrDefault(key, 0) + 1);
+        }
+        sortedKeys = next;
+    }
+
+    /**
+     * Spreads the keys out again. Inside a transaction the listener is only told on commit, so the moved keys
+     * are read here unless it has already been.
+     */
+    private synchronized void renumber() {
+        long before = moves;
+
+        widgetRepository.renumberCoordinateZ(GAP);
+        if (moves == before && !sortedKeys.isEmpty()) {
+            indexMoved(0, (sortedKeys.size() - 1) * GAP);
+        }
+    }
+
+    private long allocateLast() {
+        TreePMap<Long, Integer> index = sortedKeys;
+        Long key = index.isEmpty() ? Long.valueOf(0) : between(index.lastKey(), null);
+
+        if (Objects.isNull(key)) {
+            renumber();
+            return allocateLast();
+        }
+        return key;
+    }
+
+    /**
+     * Picks a key for the widget at position {@code rank}. A widget moving up is placed above the widget
+     * currently holding that position, otherwise below it.
+     */
+    private long allocate(long rank, long currentRank) {
+        TreePMap<Long, Integer> index = sortedKeys;
+        long lowerRank = rank < currentRank ? rank - 1 : rank;
+        Long lower = lowerRank < 0 ? null : keyAt(index, lowerRank);
+
+        if (index.isEmpty() || lowerRank >= 0 && Objects.isNull(lower)) {
+            return allocateLast();
+        }
+
+        Long upper = Objects.isNull(lower) ? index.firstKey() : index.higherKey(lower);
+        Long key = between(lower, upper);
+
+        if (Objects.isNull(key)) {
+            renumber();
+            return allocate(rank, currentRank);
+        }
+        return key;
+    }
+
+    /**
+     * @return a key strictly between the bounds, {@code null} when the gap is exhausted
+     */
+    private static Long between(Long lower, Long upper) {
+        if (Objects.isNull(lower)) {
+            return upper >= Long.MIN_VALUE + GAP ? upper - GAP : null;
+        }
+        if (Objects.isNull(upper)) {
+            return lower <= Long.MAX_VALUE - GAP ? lower + GAP : null;
+        }
+        return lower < upper - 1 ? lower + ((upper - lower) >>> 1) : null;
+    }
+}
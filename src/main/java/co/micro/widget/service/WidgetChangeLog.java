@@ -0,0 +1,202 @@
+package co.micro.widget.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import co.micro.widget.repository.WidgetChangeListener;
+
+
+/**
+ * Bounded log of widget changes, one revision per entry. An entry is the id of a widget written or deleted,
+ * or a range of coordinates Z moved by a shift or a renumbering, so moving any number of widgets takes
+ * a single entry. Entries are kept in a ring of primitive arrays; once full, the oldest are overwritten.
+ * <p>
+ * Writers do not lock: an operation reserves its entries with one atomic add, fills them and stamps each with
+ * its counter. The revision goes up to the last entry with every entry before it stamped. A revision carries
+ * a random epoch of the run above its counter, so a revision of an earlier run is never mistaken for one of this run.
+ * Both fit in 53 bits, so that a revision survives a JSON client that reads numbers as doubles.
+ */
+final class WidgetChangeLog implements WidgetChangeListener {
+
+    private static final int COUNTER_BITS = 40;
+
+    private static final int EPOCH_BITS = 13;
+
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    private static final int WIDGET = 0;
+
+    private static final int RANGE = 1;
+
+    private final int capacity;
+
+    /**
+     * Most and least significant bits of the widget id, or the first and last coordinate Z of the range.
+     */
+    private final AtomicLongArray first;
+    private final AtomicLongArray second;
+
+    private final AtomicIntegerArray kinds;
+
+    /**
+     * Counter of the entry held by each slot once written. A writer waits for the entry one lap before its own,
+     * which only happens when {@code capacity} entries are appended while another writer is still filling in.
+     */
+    private final AtomicLongArray stamps;
+
+    private final long epoch;
+
+    /**
+     * Counter of the last reserved entry.
+     */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Counter up to which every entry is stamped, advanced by the readers of the revision.
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    WidgetChangeLog(int capacity) {
+        this.capacity = capacity;
+        first = new AtomicLongArray(capacity);
+        second = new AtomicLongArray(capacity);
+        kinds = new AtomicIntegerArray(capacity);
+        stamps = new AtomicLongArray(capacity);
+        epoch = ThreadLocalRandom.current().nextLong(1, 1L << EPOCH_BITS) << COUNTER_BITS;
+
+        for (int index = 0; index < capacity; index++) {
+            stamps.set(index, (index == 0 ? capacity : index) - capacity);
+        }
+    }
+
+    @Override
+    public void changed(Collection<UUID> widgetIds) {
+        if (widgetIds.isEmpty()) {
+            return;
+        }
+
+        long counter = reserved.getAndAdd(widgetIds.size());
+
+        for (UUID widgetId : widgetIds) {
+            write(++counter, WIDGET, widgetId.getMostSignificantBits(), widgetId.getLeastSignificantBits());
+        }
+    }
+
+    @Override
+    public void moved(long fromZ, long toZ) {
+        write(reserved.incrementAndGet(), RANGE, fromZ, toZ);
+    }
+
+    long getRevision() {
+        long counter = published.get();
+        long last = reserved.get();
+
+        while (counter < last && stamps.get(index(counter + 1)) >= counter + 1) {
+            counter++;
+        }
+
+        return epoch | published.accumulateAndGet(counter, Math::max);
+    }
+
+    /**
+     * @return what changed after {@code since} up to {@code until}; {@code null} when the log no longer holds
+     * all of it or {@code since} is not a revision of this run
+     */
+    Changes getChanged(long since, long until) {
+        long from = since & COUNTER_MASK;
+        long to = until & COUNTER_MASK;
+
+        if ((since & ~COUNTER_MASK) != epoch || (until & ~COUNTER_MASK) != epoch || from > to || isOverwritten(from)) {
+            return null;
+        }
+
+        Set<UUID> widgetIds = new LinkedHashSet<>();
+        List<long[]> ranges = new ArrayList<>();
+
+        for (long counter = to; counter > from; counter--) {
+            int index = index(counter);
+
+            if (stamps.get(index) != counter) {
+                return null;
+            }
+            if (kinds.get(index) == RANGE) {
+                ranges.add(new long[]{first.get(index), second.get(index)});
+            } else {
+                widgetIds.add(new UUID(first.get(index), second.get(index)));
+            }
+        }
+
+        return isOverwritten(from) ? null : new Changes(widgetIds, merge(ranges));
+    }
+
+    private void write(long counter, int kind, long firstValue, long secondValue) {
+        int index = index(counter);
+
+        while (stamps.get(index) < counter - capacity) {
+            Thread.onSpinWait();
+        }
+        first.set(index, firstValue);
+        second.set(index, secondValue);
+        kinds.set(index, kind);
+        stamps.set(index, counter);
+    }
+
+    /**
+     * Whether an entry after {@code from} has been, or is being, overwritten by a later lap.
+     */
+    private boolean isOverwritten(long from) {
+        return reserved.get() - capacity > from;
+    }
+
+    private int index(long counter) {
+        return (int) Math.floorMod(counter, (long) capacity);
+    }
+
+    /**
+     * @return the ranges ordered by their first coordinate, overlapping and adjacent ones joined
+     */
+    private static List<long[]> merge(List<long[]> ranges) {
+        List<long[]> merged = new ArrayList<>();
+
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+
+            if (Objects.nonNull(last) && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+
+        return merged;
+    }
+
+    static final class Changes {
+
+        /**
+         * Ids written or deleted, each once, the most recently changed first.
+         */
+        final Set<UUID> widgetIds;
+
+        /**
+         * Ranges of coordinates Z moved, first and last included, ordered and disjoint.
+         */
+        final List<long[]> moved;
+
+        private Changes(Set<UUID> widgetIds, List<long[]> moved) {
+            this.widgetIds = widgetIds;
+            this.moved = moved;
+        }
+    }
+}
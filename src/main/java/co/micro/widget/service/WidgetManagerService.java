@@ -1,22 +1,41 @@
 package co.micro.widget.service;
 
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
 
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetChanges;
+import co.micro.widget.entity.WidgetCursor;
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.entity.WidgetPage;
 import co.micro.widget.exception.WidgetException;
 import co.micro.widget.repository.WidgetRepository;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 
 @Service
@@ -25,151 +44,372 @@ public class WidgetManagerService implements WidgetService {
     public static final int ROW_LIMIT_MAX = 500;
     public static final int ROW_LIMIT_DEFAULT = 10;
 
+    private static final int WIDGET_LOCK_STRIPES = 64;
+
     @Autowired
     private WidgetRepository widgetRepository;
 
+    @Autowired
+    private SparseZAllocator sparseZAllocator;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${widget.z-allocation:shift}")
+    private ZAllocation zAllocation;
+
+    @Value("${widget.change-log.capacity:100000}")
+    private int changeLogCapacity;
+
+    /**
+     * Z order lock. Operations that assign or reorder Z hold it exclusively; reads and writes of
+     * a single widget share it and are serialized per widget by {@link #widgetLocks}.
+     * Thread-safe repositories reorder atomically on their own and are not locked, unless Z is sparse.
+     */
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+    private ReentrantLock[] widgetLocks = IntStream.range(0, WIDGET_LOCK_STRIPES)
+        .mapToObj(i -> new ReentrantLock())
+        .toArray(ReentrantLock[]::new);
+
+    /**
+     * Told every change by the repository, including the ranges moved by a shift.
+     */
+    private WidgetChangeLog changeLog;
+
+    private OperationTimer createTimer;
+    private OperationTimer updateTimer;
+    private OperationTimer deleteTimer;
+    private OperationTimer batchTimer;
+    private OperationTimer getTimer;
+    private OperationTimer listPageTimer;
+    private OperationTimer listCursorTimer;
+    private OperationTimer changesTimer;
+
+    private LockTimers zOrderReadTimers;
+    private LockTimers zOrderWriteTimers;
+    private LockTimers widgetLockTimers;
+
+    /**
+     * Timers are registered once and recorded directly: looking them up per call would cost more than
+     * reading a widget. They also record the JFR events, see {@link co.micro.widget.trace}.
+     */
+    @PostConstruct
+    void registerTimers() {
+        createTimer = new OperationTimer(meterRegistry, "create");
+        updateTimer = new OperationTimer(meterRegistry, "update");
+        deleteTimer = new OperationTimer(meterRegistry, "delete");
+        batchTimer = new OperationTimer(meterRegistry, "batch");
+        getTimer = new OperationTimer(meterRegistry, "get");
+        listPageTimer = new OperationTimer(meterRegistry, "list-page");
+        listCursorTimer = new OperationTimer(meterRegistry, "list-cursor");
+        changesTimer = new OperationTimer(meterRegistry, "changes");
+
+        zOrderReadTimers = new LockTimers(meterRegistry, "z-order", "read");
+        zOrderWriteTimers = new LockTimers(meterRegistry, "z-order", "write");
+        widgetLockTimers = new LockTimers(meterRegistry, "widget", "write");
+    }
+
+    @PostConstruct
+    void registerChangeLog() {
+        changeLog = new WidgetChangeLog(changeLogCapacity);
+        widgetRepository.addChangeListener(changeLog);
+        if (isSparse()) {
+            sparseZAllocator.start();
+        }
+    }
+
     @Override
     public Widget createWidget(CreateWidget request) {
-        return setWriteLock(
+        return createTimer.record(request.getWidgetId(), () -> setZOrderLock(
             CreateWidget.builder()
                 .widgetId(request.getWidgetId())
                 .widgetName(request.getWidgetName())
                 .coordinateX(request.getCoordinateX())
                 .coordinateY(request.getCoordinateY())
-                .coordinateZ(Objects.isNull(request.getCoordinateZ()) ? getMaxZ() : request.getCoordinateZ())
+                .coordinateZ(request.getCoordinateZ())
                 .height(request.getHeight())
                 .width(request.getWidth())
                 .updatedAt(ZonedDateTime.now().toInstant().toEpochMilli())
                 .createdAt(ZonedDateTime.now().toInstant().toEpochMilli())
                 .build(),
-            widget -> reorderAndCreateWidget(widget)
-        );
+            widget -> isSparse() ? sparseZAllocator.createWidget(widget) : widgetRepository.createWidgetAt(widget)
+        ));
     }
 
+    /**
+     * Updates without a coordinate Z never reorder, so they only lock the widget itself. They leave the
+     * coordinate Z to the repository, which keeps the current one even if a shift has just moved the widget.
+     */
     @Override
     public Widget updateWidget(UpdateWidget request) {
-        return setWriteLock(
+        if (Objects.isNull(request.getCoordinateZ())) {
+            return updateTimer.record(request.getWidgetId(), () -> setWidgetLock(
+                request.getWidgetId(),
+                request,
+                widget -> widgetRepository.getWidget(widget)
+                    .map(wg -> widgetRepository.updateWidget(applyChanges(widget, wg).withCoordinateZ(null)))
+                    .map(wg -> isSparse() ? sparseZAllocator.toVisible(wg) : wg)
+                    .orElseThrow(() -> WidgetException.widgetNotFound(request.getWidgetId()))
+            ));
+        }
+
+        return updateTimer.record(request.getWidgetId(), () -> setZOrderLock(
             request,
-            widget -> widgetRepository.getWidget(widget)
-                .map(wg -> applyChanges(widget, wg))
-                .map(wg -> reorderAndUpdateWidget(wg))
-                .orElseThrow(() -> WidgetException.widgetNotFound(request.getWidgetId()))
-        );
+            widget -> setWidgetLock(
+                widget.getWidgetId(),
+                widget,
+                wd -> widgetRepository.getWidget(wd)
+                    .map(wg -> isSparse() ?
+                        sparseZAllocator.updateWidget(applyChanges(wd.withCoordinateZ(null), wg), wd.getCoordinateZ()) :
+                        widgetRepository.updateWidgetAt(applyChanges(wd, wg)))
+                    .orElseThrow(() -> WidgetException.widgetNotFound(request.getWidgetId())))
+        ));
     }
 
     @Override
     public void deleteWidget(UUID widgetId) {
-        lock.writeLock().lock();
-        try {
-            widgetRepository.deleteWidget(widgetId);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        deleteTimer.record(widgetId, () -> setWidgetLock(
+            widgetId,
+            widgetId,
+            id -> {
+                if (isSparse()) {
+                    sparseZAllocator.deleteWidget(id);
+                } else {
+                    widgetRepository.deleteWidget(id);
+                }
+                return id;
+            }
+        ));
+    }
+
+    /**
+     * Applies the whole batch under one Z order lock with a single reorder pass in the repository.
+     * Sparse Z has no such pass, so its writes go one by one once every referenced widget has been checked,
+     * in one transaction committed before the lock is released. That makes them all or nothing on H2 only:
+     * the in-memory stores keep the writes made before a failing one, and the ones read without locking
+     * may show the batch half applied.
+     */
+    @Override
+    public List<Widget> applyBatch(WidgetBatch request) {
+        long now = ZonedDateTime.now().toInstant().toEpochMilli();
+
+        return batchTimer.record(null, () -> setZOrderLock(
+            WidgetBatch.builder()
+                .create(Optional.ofNullable(request.getCreate()).orElse(List.of()).stream()
+                    .map(widget -> widget.withCreatedAt(now).withUpdatedAt(now))
+                    .collect(Collectors.toList()))
+                .update(Optional.ofNullable(request.getUpdate()).orElse(Map.of()).entrySet().stream()
+                    .collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        entry -> entry.getValue().withWidgetId(entry.getKey()).withUpdatedAt(now),
+                        (v1, v2) -> v2,
+                        LinkedHashMap::new)))
+                .delete(Optional.ofNullable(request.getDelete()).orElse(List.of()))
+                .build(),
+            batch -> isSparse() ? applyBatchInTransaction(batch) : widgetRepository.applyBatch(batch)
+        ));
     }
 
     @Override
     public Widget getWidget(UUID widgetId) {
-        lock.readLock().lock();
-        try {
-            return widgetRepository.getWidget(widgetId)
-                .orElseThrow(() -> WidgetException.widgetNotFound(widgetId));
-        } finally {
-            lock.readLock().unlock();
-        }
+        return getTimer.record(widgetId, () -> setReadLock(
+            widgetId,
+            id -> widgetRepository.getWidget(id)
+                .map(wg -> isSparse() ? sparseZAllocator.toVisible(wg) : wg)
+                .orElseThrow(() -> WidgetException.widgetNotFound(id))
+        ));
     }
 
     public List<Widget> getWidgets(int page, int limit, Long maxCoordinateX, Long maxCoordinateY, Long width, Long height) {
-        lock.readLock().lock();
-        try {
-            return widgetRepository.getWidgets().stream()
-                //TODO: This is a draft filtering
-                .filter(wg -> Objects.nonNull(maxCoordinateY) ? wg.getCoordinateY() >= 0 && wg.getCoordinateY() <= maxCoordinateY : true)
-                .filter(wg -> Objects.nonNull(maxCoordinateX) ? wg.getCoordinateX() >= 0 && wg.getCoordinateX() <= maxCoordinateX : true)
-                .filter(wg -> Objects.nonNull(width) ? wg.getWidth() == width : true)
-                .filter(wg -> Objects.nonNull(height) ? wg.getHeight() == height : true)
-                .filter(wg -> Objects.nonNull(maxCoordinateY) && Objects.nonNull(height) ?
-                    wg.getCoordinateY() + Double.valueOf(wg.getHeight()) / 2 <= maxCoordinateY : true)
-                .filter(wg -> Objects.nonNull(maxCoordinateX) && Objects.nonNull(width) ?
-                    wg.getCoordinateX() + Double.valueOf(wg.getWidth()) / 2 <= maxCoordinateX : true)
-                .sorted(Comparator.comparingLong(Widget::getCoordinateZ))
-                .skip((page - 1) * getLimit(limit))
-                .limit(getLimit(limit))
-                .collect(Collectors.toUnmodifiableList());
-        } finally {
-            lock.readLock().unlock();
-        }
-    }
+        return listPageTimer.record(null, () -> setReadLock(
+            getFilter(maxCoordinateX, maxCoordinateY, width, height),
+            filter -> {
+                List<Widget> widgets = List.copyOf(
+                    widgetRepository.findInArea(filter, (long) (page - 1) * getLimit(limit), getLimit(limit)));
 
-    private Widget reorderAndCreateWidget(CreateWidget widget) {
-        List<Widget> widgets = widgetRepository.getWidgets(widget.getCoordinateZ());
+                return isSparse() ?
+                    Collections.unmodifiableList(sparseZAllocator.toVisible(widgets, filter.isEmpty())) :
+                    widgets;
+            }
+        ));
+    }
 
-        reorderAndUpdateZ(widgets, widget.getCoordinateZ());
+    /**
+     * Keyset listing. The page continues above the current Z of the cursor widget, so shifts between
+     * requests do not repeat or skip widgets; the cursor Z is used when that widget is gone.
+     */
+    @Override
+    public WidgetPage getWidgets(WidgetCursor after, int limit, Long maxCoordinateX, Long maxCoordinateY, Long width, Long height) {
+        return listCursorTimer.record(null, () -> setReadLock(
+            getFilter(maxCoordinateX, maxCoordinateY, width, height),
+            filter -> {
+                Long afterZ = Objects.isNull(after) ?
+                    null :
+                    widgetRepository.getWidget(after.getWidgetId())
+                        .map(Widget::getCoordinateZ)
+                        .orElse(after.getCoordinateZ());
+                List<Widget> widgets = widgetRepository.findInAreaAfter(filter, afterZ, getLimit(limit));
 
-        return widgetRepository.createWidget(widget);
+                return WidgetPage.builder()
+                    .widgets(Collections.unmodifiableList(isSparse() ? sparseZAllocator.toVisible(widgets, filter.isEmpty()) : widgets))
+                    .nextCursor(widgets.size() < getLimit(limit) ? null : WidgetCursor.of(widgets.get(widgets.size() - 1)))
+                    .build();
+            }
+        ));
     }
 
-    private Widget reorderAndUpdateWidget(UpdateWidget widget) {
-        List<Widget> widgets = widgetRepository.getWidgets(widget.getCoordinateZ()).stream()
-            .filter(wg -> !Objects.equals(wg.getWidgetId(), widget.getWidgetId()))
-            .collect(Collectors.toList());
+    /**
+     * Widgets are read as currently stored, so a change made after the returned revision may already show;
+     * it is listed again from that revision on.
+     */
+    @Override
+    public Optional<WidgetChanges> getChanges(long since) {
+        return changesTimer.record(null, () -> setReadLock(
+            since,
+            from -> {
+                long revision = changeLog.getRevision();
+                WidgetChangeLog.Changes changes = changeLog.getChanged(from, revision);
 
-        reorderAndUpdateZ(widgets, widget.getCoordinateZ());
+                if (Objects.isNull(changes)) {
+                    return Optional.empty();
+                }
 
-        return widgetRepository.updateWidget(widget);
+                Map<UUID, Widget> changed = new LinkedHashMap<>();
+                List<UUID> deletedIds = new ArrayList<>();
+
+                changes.widgetIds.forEach(widgetId -> widgetRepository.getWidget(widgetId)
+                    .ifPresentOrElse(widget -> changed.put(widgetId, widget), () -> deletedIds.add(widgetId)));
+                changes.moved.forEach(range -> getWidgetsMoved(range[0], range[1])
+                    .forEach(widget -> changed.putIfAbsent(widget.getWidgetId(), widget)));
+
+                List<Widget> widgets = new ArrayList<>(changed.values());
+                widgets.sort(Comparator.comparingLong(Widget::getCoordinateZ));
+
+                return Optional.of(WidgetChanges.builder()
+                    .revision(revision)
+                    .widgets(Collections.unmodifiableList(isSparse() ? sparseZAllocator.toVisible(widgets, false) : widgets))
+                    .deleted(Collections.unmodifiableList(deletedIds))
+                    .build());
+            }
+        ));
     }
 
-    private void reorderAndUpdateZ(List<Widget> widgets, Long newZ) {
-        Widget updatedWidget = null;
+    /**
+     * @return widgets stored between the coordinates Z, both included, read a page at a time
+     */
+    private List<Widget> getWidgetsMoved(long fromZ, long toZ) {
+        WidgetFilter filter = WidgetFilter.builder().build();
+        List<Widget> moved = new ArrayList<>();
+        long afterZ = fromZ - 1;
 
-        for (Widget widget : widgets) {
-            Long curZ = widget.getCoordinateZ();
+        while (afterZ < toZ) {
+            List<Widget> page = widgetRepository.findInAreaAfter(filter, afterZ, ROW_LIMIT_MAX);
 
-            if (Objects.isNull(updatedWidget) && Objects.equals(curZ, newZ)) {
-                updatedWidget = incrementAndUpdateZ(widget, curZ);
-            } else if (Objects.nonNull(updatedWidget) && Objects.equals(curZ, updatedWidget.getCoordinateZ())) {
-                updatedWidget = incrementAndUpdateZ(widget, curZ);
+            for (Widget widget : page) {
+                if (widget.getCoordinateZ() > toZ) {
+                    return moved;
+                }
+                moved.add(widget);
             }
+            if (page.size() < ROW_LIMIT_MAX) {
+                break;
+            }
+            afterZ = page.get(page.size() - 1).getCoordinateZ();
         }
-    }
 
-    private Widget incrementAndUpdateZ(Widget widget, Long z) {
-        return widgetRepository.updateWidget(UpdateWidget.builder()
-            .widgetId(widget.getWidgetId())
-            .widgetName(widget.getWidgetName())
-            .coordinateX(widget.getCoordinateX())
-            .coordinateY(widget.getCoordinateY())
-            .coordinateZ(increment(z))
-            .height(widget.getHeight())
-            .width(widget.getWidth())
-            .updatedAt(widget.getUpdatedAt())
-            .build());
+        return moved;
     }
 
-    private Long getMaxZ() {
-        return widgetRepository.getWidgetMaxByCoordinateZ()
-            .map(widget -> increment(widget.getCoordinateZ()))
-            .orElse(Long.valueOf(0));
+    @Override
+    public long getVersion() {
+        return changeLog.getRevision();
     }
 
-    private <T, R> R setWriteLock(T widget, Function<T, R> manageWidgets) {
-        lock.writeLock().lock();
+    /**
+     * The allocator has indexed the writes as they were made, so a rollback has it load the keys again.
+     */
+    private List<Widget> applyBatchInTransaction(WidgetBatch batch) {
         try {
+            return transactionTemplate.execute(status -> applyBatchOneByOne(batch));
+        } catch (RuntimeException e) {
+            sparseZAllocator.reindex();
+            throw e;
+        }
+    }
+
+    private List<Widget> applyBatchOneByOne(WidgetBatch batch) {
+        Set<UUID> deletedIds = new HashSet<>(batch.getDelete());
+        List<Widget> widgets = new ArrayList<>();
+
+        Stream.concat(batch.getDelete().stream(), batch.getUpdate().keySet().stream())
+            .filter(widgetId -> deletedIds.contains(widgetId) && batch.getUpdate().containsKey(widgetId) ||
+                widgetRepository.getWidget(widgetId).isEmpty())
+            .findFirst()
+            .ifPresent(widgetId -> {
+                throw WidgetException.widgetNotFound(widgetId);
+            });
+
+        batch.getDelete().forEach(this::deleteWidget);
+        batch.getUpdate().values().forEach(widget -> widgets.add(updateWidget(widget)));
+        batch.getCreate().forEach(widget -> widgets.add(createWidget(widget)));
+
+        return widgets;
+    }
+
+    private boolean isSparse() {
+        return zAllocation == ZAllocation.SPARSE;
+    }
+
+    /**
+     * Sparse allocation reads the neighbourhood before writing, so it always needs the Z order lock.
+     */
+    private boolean isZOrderLocked() {
+        return isSparse() || !widgetRepository.isThreadSafe();
+    }
+
+    /**
+     * Repositories publishing snapshots are read without locking, so readers never wait for a reorder.
+     */
+    private <T, R> R setReadLock(T widget, Function<T, R> readWidgets) {
+        if (widgetRepository.hasLockFreeReads() || !isZOrderLocked()) {
+            return readWidgets.apply(widget);
+        }
+
+        return zOrderReadTimers.call(lock.readLock(), () -> readWidgets.apply(widget));
+    }
+
+    private <T, R> R setZOrderLock(T widget, Function<T, R> manageWidgets) {
+        if (!isZOrderLocked()) {
             return manageWidgets.apply(widget);
-        } finally {
-            lock.writeLock().unlock();
         }
+
+        return zOrderWriteTimers.call(lock.writeLock(), () -> manageWidgets.apply(widget));
     }
 
-    private static Long increment(Long v) {
-        return ++v;
+    private <T, R> R setWidgetLock(UUID widgetId, T widget, Function<T, R> manageWidget) {
+        ReentrantLock widgetLock = widgetLocks[Math.floorMod(widgetId.hashCode(), widgetLocks.length)];
+        Supplier<R> manageLocked = () -> widgetLockTimers.call(widgetLock, () -> manageWidget.apply(widget));
+
+        return isZOrderLocked() ? zOrderReadTimers.call(lock.readLock(), manageLocked) : manageLocked.get();
     }
 
     private static int getLimit(int limit) {
         return limit == 0 ? ROW_LIMIT_DEFAULT : limit > ROW_LIMIT_MAX ? ROW_LIMIT_MAX : limit;
     }
 
+    private static WidgetFilter getFilter(Long maxCoordinateX, Long maxCoordinateY, Long width, Long height) {
+        return WidgetFilter.builder()
+            .maxCoordinateX(maxCoordinateX)
+            .maxCoordinateY(maxCoordinateY)
+            .width(width)
+            .height(height)
+            .build();
+    }
+
     private static UpdateWidget applyChanges(UpdateWidget request, Widget widget) {
         return UpdateWidget.builder()
             .widgetId(widget.getWidgetId())
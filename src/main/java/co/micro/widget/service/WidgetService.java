@@ -1,11 +1,16 @@
 package co.micro.widget.service;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetChanges;
+import co.micro.widget.entity.WidgetCursor;
+import co.micro.widget.entity.WidgetPage;
 
 
 public interface WidgetService {
@@ -16,6 +21,8 @@ public interface WidgetService {
 
     void deleteWidget(UUID widgetId);
 
+    List<Widget> applyBatch(WidgetBatch batch);
+
     Widget getWidget(UUID widgetId);
 
     List<Widget> getWidgets(
@@ -26,4 +33,25 @@ public interface WidgetService {
         Long width,
         Long height
     );
+
+    WidgetPage getWidgets(
+        WidgetCursor after,
+        int limit,
+        Long maxCoordinateX,
+        Long maxCoordinateY,
+        Long width,
+        Long height
+    );
+
+    /**
+     * @return widgets created, updated or deleted after the store revision, empty when the revision is too old
+     * for the bounded change log (or not one of this run) and the client has to read everything again
+     */
+    Optional<WidgetChanges> getChanges(long since);
+
+    /**
+     * @return store revision, increased by every change of a widget, shifted ones included. A read that starts
+     * after reading a revision sees at least the changes up to it; equal revisions mean nothing changed in between.
+     */
+    long getVersion();
 }
@@ -0,0 +1,19 @@
+package co.micro.widget.service;
+
+
+/**
+ * How {@link WidgetManagerService} assigns coordinate Z, configured by {@code widget.z-allocation}.
+ */
+public enum ZAllocation {
+
+    /**
+     * Z is stored as given; a widget placed on an occupied Z shifts the following contiguous run up.
+     */
+    SHIFT,
+
+    /**
+     * Z is stored as a spaced-out key and exposed as the dense position of the widget in the stack.
+     * Placing a widget takes a key between its neighbours, renumbering only when the gap is exhausted.
+     */
+    SPARSE
+}
@@ -0,0 +1,23 @@
+package co.micro.widget.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+
+@Name("co.micro.widget.Lock")
+@Label("Widget Lock")
+@Category("Widget")
+@Description("Wait for a lock of the widget service")
+@Threshold("1 ms")
+public class WidgetLockEvent extends Event {
+
+    @Label("Lock")
+    public String lock;
+
+    @Label("Mode")
+    public String mode;
+}
@@ -0,0 +1,25 @@
+package co.micro.widget.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("co.micro.widget.Operation")
+@Label("Widget Operation")
+@Category("Widget")
+@Description("Widget service operation, enclosing the lock, shift, query and scan events of the same thread")
+public class WidgetOperationEvent extends Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Widget Id")
+    public String widgetId;
+
+    @Label("Widgets")
+    @Description("Widgets returned")
+    public int widgets;
+}
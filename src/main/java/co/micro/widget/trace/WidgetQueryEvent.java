@@ -0,0 +1,25 @@
+package co.micro.widget.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("co.micro.widget.Query")
+@Label("Widget Query")
+@Category("Widget")
+@Description("Call to the widget repository")
+public class WidgetQueryEvent extends Event {
+
+    @Label("Repository")
+    public String repository;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Rows")
+    @Description("Widgets returned")
+    public int rows;
+}
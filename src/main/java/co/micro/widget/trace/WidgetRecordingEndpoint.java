@@ -0,0 +1,110 @@
+package co.micro.widget.trace;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.PreDestroy;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventSettings;
+import jdk.jfr.Recording;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+
+/**
+ * Flight recording on demand at {@code /actuator/jfr}: {@code POST} starts one, {@code GET} downloads what it has
+ * recorded so far and {@code DELETE} stops it. Only one recording runs at a time; starting again replaces it.
+ * The recording enables the widget events and nothing else, so it never carries JDK events such as the process
+ * environment or system properties. The endpoint is not exposed over HTTP unless configured.
+ */
+@Component
+@Endpoint(id = "jfr")
+public class WidgetRecordingEndpoint {
+
+    private static final List<Class<? extends Event>> EVENTS = List.of(
+        WidgetOperationEvent.class,
+        WidgetLockEvent.class,
+        WidgetShiftEvent.class,
+        WidgetQueryEvent.class,
+        WidgetScanEvent.class);
+
+    private Recording recording;
+
+    private Path dumpFile;
+
+    /**
+     * @param thresholdMs minimum duration of recorded widget events; by default every event is recorded,
+     *                    lock waits from 1 ms
+     * @param durationSeconds stops the recording after this long; by default it runs until stopped
+     */
+    @WriteOperation
+    public synchronized Map<String, Object> start(@Nullable Long thresholdMs, @Nullable Long durationSeconds) throws IOException {
+        stop();
+
+        Recording started = new Recording();
+
+        started.setName("widget");
+        EVENTS.forEach(event -> {
+            EventSettings eventSettings = started.enable(event);
+
+            if (Objects.nonNull(thresholdMs)) {
+                eventSettings.withThreshold(Duration.ofMillis(thresholdMs));
+            }
+        });
+        if (Objects.nonNull(durationSeconds)) {
+            started.setDuration(Duration.ofSeconds(durationSeconds));
+        }
+        dumpFile = Files.createTempFile("widget-", ".jfr");
+        started.start();
+        recording = started;
+
+        return describe();
+    }
+
+    /**
+     * @return the events recorded so far, or 404 when no recording was started
+     */
+    @ReadOperation
+    public synchronized Resource dump() throws IOException {
+        if (Objects.isNull(recording)) {
+            return null;
+        }
+
+        recording.dump(dumpFile);
+        return new FileSystemResource(dumpFile);
+    }
+
+    @DeleteOperation
+    @PreDestroy
+    public synchronized void stop() throws IOException {
+        if (Objects.isNull(recording)) {
+            return;
+        }
+
+        recording.close();
+        recording = null;
+        Files.deleteIfExists(dumpFile);
+    }
+
+    private Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+
+        description.put("name", recording.getName());
+        description.put("state", recording.getState().toString());
+        description.put("startTime", recording.getStartTime().toString());
+        description.put("duration", Objects.toString(recording.getDuration(), null));
+        return description;
+    }
+}
@@ -0,0 +1,33 @@
+package co.micro.widget.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("co.micro.widget.Scan")
+@Label("Widget Scan")
+@Category("Widget")
+@Description("Filtered lookup in an in-memory store")
+public class WidgetScanEvent extends Event {
+
+    @Label("Store")
+    public String store;
+
+    @Label("Filter")
+    public String filter;
+
+    @Label("Scanned")
+    @Description("Widgets tested against the filter")
+    public long scanned;
+
+    @Label("Matched")
+    @Description("Widgets returned")
+    public int matched;
+
+    @Label("Full Scan")
+    @Description("Whether every stored widget was tested")
+    public boolean fullScan;
+}
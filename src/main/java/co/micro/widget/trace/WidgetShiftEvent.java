@@ -0,0 +1,29 @@
+package co.micro.widget.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("co.micro.widget.Shift")
+@Label("Widget Shift")
+@Category("Widget")
+@Description("Cascade moving the contiguous run of widgets at a coordinate Z one step up")
+public class WidgetShiftEvent extends Event {
+
+    @Label("Repository")
+    public String repository;
+
+    @Label("Widget Id")
+    @Description("Widget created or moved at the coordinate Z")
+    public String widgetId;
+
+    @Label("Coordinate Z")
+    public long coordinateZ;
+
+    @Label("Shifted")
+    @Description("Widgets moved up")
+    public int shifted;
+}
@@ -0,0 +1,33 @@
+package co.micro.widget.trace;
+
+import java.util.Collection;
+import java.util.Optional;
+
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetPage;
+
+
+public final class WidgetTrace {
+
+    private WidgetTrace() {
+    }
+
+    /**
+     * @return number of widgets in a service or repository result, 0 for anything else
+     */
+    public static int countWidgets(Object result) {
+        if (result instanceof Widget) {
+            return 1;
+        }
+        if (result instanceof Optional) {
+            return ((Optional<?>) result).isPresent() ? 1 : 0;
+        }
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof WidgetPage) {
+            return ((WidgetPage) result).getWidgets().size();
+        }
+        return 0;
+    }
+}
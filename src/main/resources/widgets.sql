@@ -1,6 +1,4 @@
-DROP TABLE IF EXISTS widgets;
-
-CREATE TABLE widgets (
+CREATE TABLE IF NOT EXISTS widgets (
   widget_id    VARCHAR(200) NOT NULL,
   widget_name  VARCHAR(200) NOT NULL,
   coordinate_x BIGINT       NOT NULL,
@@ -11,4 +9,9 @@ CREATE TABLE widgets (
   updated_at   BIGINT       NOT NULL,
   created_at   BIGINT       NOT NULL,
   PRIMARY KEY (widget_id)
-);
\ No newline at end of file
+);
+
+CREATE INDEX IF NOT EXISTS widgets_coordinate_z_idx ON widgets (coordinate_z);
+CREATE INDEX IF NOT EXISTS widgets_coordinate_x_idx ON widgets (coordinate_x);
+CREATE INDEX IF NOT EXISTS widgets_coordinate_y_idx ON widgets (coordinate_y);
+CREATE INDEX IF NOT EXISTS widgets_size_idx ON widgets (width, height, coordinate_z);
@@ -1,44 +1,64 @@
 package co.micro.widget;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
 import co.micro.widget.helpers.WidgetHelper;
 import co.micro.widget.service.WidgetManagerService;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 import static co.micro.widget.helpers.WidgetHelper.checkWidget;
 import static co.micro.widget.helpers.WidgetHelper.getCreateRequest;
 import static co.micro.widget.helpers.WidgetHelper.getUpdateRequest;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 
 @RunWith(SpringRunner.class)
 @AutoConfigureMockMvc
-@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.MOCK)
+@SpringBootTest(
+    webEnvironment = SpringBootTest.WebEnvironment.MOCK,
+    properties = {
+        "management.endpoints.web.exposure.include=health,info,prometheus,jfr",
+        "widget.stream.max-subscribers=2"
+    })
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class WidgetManagerServiceIT {
 
     private static final String URL = "/api/widgets";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
 
     @Autowired
     private MockMvc mockMvc;
@@ -171,6 +191,271 @@ public class WidgetManagerServiceIT {
         );
     }
 
+    @Test
+    public void getWidgetsWithCursor() throws Exception {
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_2", 50, 150, 2, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_3", 100, 100, 3, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_4", 50, 100, 4, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_5", 100, 150, 5, 100, 100, UUID.randomUUID()));
+
+        MvcResult page1 = getWidgetsAfter(null, 2);
+        String cursor1 = page1.getResponse().getHeader(NEXT_CURSOR_HEADER);
+        createWidget(getCreateRequest("Widget_0", 10, 10, 1, 100, 100, UUID.randomUUID()));
+        MvcResult page2 = getWidgetsAfter(cursor1, 2);
+        String cursor2 = page2.getResponse().getHeader(NEXT_CURSOR_HEADER);
+        MvcResult page3 = getWidgetsAfter(cursor2, 2);
+
+        assertEquals(getWidgetNames(page1), List.of("Widget_1", "Widget_2"));
+        assertEquals(getWidgetNames(page2), List.of("Widget_3", "Widget_4"));
+        assertEquals(getWidgetNames(page3), List.of("Widget_5"));
+        assertNull(page3.getResponse().getHeader(NEXT_CURSOR_HEADER));
+    }
+
+    @Test
+    public void applyBatch() throws Exception {
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_2", 50, 150, 2, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_3", 100, 100, 3, 100, 100, UUID.randomUUID()));
+        List<Widget> widgets = getWidgets();
+
+        MvcResult result = applyBatch(WidgetBatch.builder()
+            .create(List.of(
+                getCreateRequest("Widget_4", 10, 10, 1, 100, 100, null),
+                getCreateRequest("Widget_5", 10L, 10L, null, 100L, 100L, null)))
+            .update(Map.of(widgets.get(0).getWidgetId(), getUpdateRequest(null, null, null, 2L, null, null, null)))
+            .delete(List.of(widgets.get(2).getWidgetId()))
+            .build());
+
+        assertEquals(getWidgetNames(result), List.of("Widget_1", "Widget_4", "Widget_5"));
+        assertEquals(getWidgets().stream()
+            .map(widget -> widget.getWidgetName() + ":" + widget.getCoordinateZ())
+            .collect(Collectors.toList()), List.of("Widget_4:1", "Widget_1:2", "Widget_2:3", "Widget_5:4"));
+    }
+
+    @Test
+    public void getWidgetNotModified() throws Exception {
+        Widget widget = objectMapper.readValue(createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100))
+            .getResponse().getContentAsString(), Widget.class);
+        String eTag = getWidget(widget.getWidgetId()).getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(MockMvcRequestBuilders
+                .get(getUrlWithId(widget.getWidgetId()))
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isNotModified());
+
+        updateWidget(getUpdateRequest("Widget_2", null, null, null, null, null, widget.getWidgetId()));
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders
+                .get(getUrlWithId(widget.getWidgetId()))
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isOk())
+            .andReturn();
+
+        assertEquals(objectMapper.readValue(result.getResponse().getContentAsString(), Widget.class).getWidgetName(), "Widget_2");
+        assertFalse(Objects.equals(result.getResponse().getHeader(HttpHeaders.ETAG), eTag));
+    }
+
+    @Test
+    public void getWidgetsCached() throws Exception {
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100));
+        createWidget(getCreateRequest("Widget_2", 50, 150, 2, 100, 100));
+
+        MvcResult first = getWidgetsAfter(null, 1);
+        MvcResult second = getWidgetsAfter(null, 1);
+        String eTag = first.getResponse().getHeader(HttpHeaders.ETAG);
+
+        assertEquals(second.getResponse().getContentAsString(), first.getResponse().getContentAsString());
+        assertEquals(second.getResponse().getHeader(NEXT_CURSOR_HEADER), first.getResponse().getHeader(NEXT_CURSOR_HEADER));
+        assertEquals(second.getResponse().getHeader(HttpHeaders.ETAG), eTag);
+
+        mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "?limit=1")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isNotModified());
+
+        createWidget(getCreateRequest("Widget_3", 50, 50, 1, 100, 100));
+
+        assertEquals(getWidgetNames(getWidgetsAfter(null, 1)), List.of("Widget_3"));
+        mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "?limit=1")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isOk());
+    }
+
+    @Test
+    public void getWidgetsBadRequest() throws Exception {
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100));
+
+        for (String[] param : new String[][]{{"page", "-1"}, {"limit", "-1"}, {"page", "first"}}) {
+            mockMvc.perform(MockMvcRequestBuilders
+                    .get(URL)
+                    .param(param[0], param[1]))
+                .andExpect(status().isBadRequest());
+        }
+    }
+
+    @Test
+    public void getWidgetsFromZeroPageAndLimit() throws Exception {
+        for (int i = 0; i < 12; i++) {
+            createWidget(getCreateRequest("Widget_" + i, 50, 50, i, 100, 100));
+        }
+
+        Widget[] widgets = objectMapper.readValue(mockMvc.perform(MockMvcRequestBuilders
+                .get(URL)
+                .param("page", "0")
+                .param("limit", "0"))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsString(), Widget[].class);
+
+        assertEquals(widgets.length, WidgetManagerService.ROW_LIMIT_DEFAULT);
+        assertEquals(widgets[0].getWidgetName(), "Widget_0");
+    }
+
+    @Test
+    public void getChanges() throws Exception {
+        Widget shifted = objectMapper.readValue(createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100))
+            .getResponse().getContentAsString(), Widget.class);
+        Widget deleted = objectMapper.readValue(createWidget(getCreateRequest("Widget_2", 50, 50, 2, 100, 100))
+            .getResponse().getContentAsString(), Widget.class);
+        createWidget(getCreateRequest("Widget_3", 50, 50, 5, 100, 100));
+
+        long since = Long.parseLong(getWidgetsAfter(null, 10).getResponse().getHeader(HttpHeaders.ETAG).replace("\"", ""));
+
+        createWidget(getCreateRequest("Widget_4", 50, 50, 1, 100, 100));
+        deleteWidget(deleted.getWidgetId());
+
+        JsonNode changes = getChanges(since);
+
+        assertEquals(objectMapper.convertValue(changes.get("widgets"), Widget[].class)[1].getWidgetId(), shifted.getWidgetId());
+        assertEquals(Arrays.stream(objectMapper.convertValue(changes.get("widgets"), Widget[].class))
+            .map(widget -> widget.getWidgetName() + ":" + widget.getCoordinateZ())
+            .collect(Collectors.toList()), List.of("Widget_4:1", "Widget_1:2"));
+        assertArrayEquals(objectMapper.convertValue(changes.get("deleted"), UUID[].class), new UUID[]{deleted.getWidgetId()});
+        assertEquals(getChanges(changes.get("revision").asLong()).get("widgets").size(), 0);
+
+        mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "/changes")
+                .param("since", "0"))
+            .andExpect(status().isGone());
+    }
+
+    @Test
+    public void streamChanges() throws Exception {
+        MvcResult stream = mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "/changes/stream"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100));
+        createWidget(getCreateRequest("Widget_2", 50, 50, 1, 100, 100));
+
+        String events = awaitEvents(stream, "\"widgetName\":\"Widget_2\"");
+
+        assertTrue(events.startsWith("id:"));
+        assertTrue(events.contains("event:changes"));
+        assertTrue(events.contains("\"widgetName\":\"Widget_1\""));
+
+        MvcResult expired = mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "/changes/stream")
+                .header("Last-Event-ID", "0"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        assertTrue(awaitEvents(expired, "event:reset").contains("data:expired"));
+    }
+
+    @Test
+    public void limitSubscribers() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(MockMvcRequestBuilders
+                    .get(URL + "/changes/stream"))
+                .andExpect(request().asyncStarted());
+        }
+
+        mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "/changes/stream"))
+            .andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    public void exposeMetrics() throws Exception {
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_2", 50, 150, 1, 100, 100, UUID.randomUUID()));
+        getWidgets();
+
+        String metrics = mockMvc.perform(MockMvcRequestBuilders
+                .get("/actuator/prometheus"))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsString();
+
+        assertEquals(getMetric(metrics, "widget_count"), 2.0, 0);
+        assertEquals(getMetric(metrics, "widget_operation_seconds_count", "operation=\"create\""), 2.0, 0);
+        assertEquals(getMetric(metrics, "widget_operation_seconds_count", "operation=\"list-cursor\""), 1.0, 0);
+        assertEquals(getMetric(metrics, "widget_shift_cascade_widgets_count"), 2.0, 0);
+        assertEquals(getMetric(metrics, "widget_shift_cascade_widgets_sum"), 1.0, 0);
+        assertFalse(metrics.contains("widget_repository_seconds"));
+        assertTrue(metrics.contains("widget_operation_seconds_bucket{"));
+        assertTrue(metrics.contains("widget_lock_wait_seconds_count{"));
+    }
+
+    @Test
+    public void recordEvents() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders
+                .post("/actuator/jfr")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content("{\"thresholdMs\": 0}"))
+            .andExpect(status().isOk());
+
+        createWidget(getCreateRequest("Widget_1", 50, 50, 1, 100, 100, UUID.randomUUID()));
+        createWidget(getCreateRequest("Widget_2", 50, 150, 1, 100, 100, UUID.randomUUID()));
+        mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "?maxCoordinateX=100&maxCoordinateY=100"))
+            .andExpect(status().isOk());
+
+        Path recording = Files.createTempFile("widget-", ".jfr");
+        try {
+            Files.write(recording, mockMvc.perform(MockMvcRequestBuilders
+                    .get("/actuator/jfr"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsByteArray());
+
+            Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(recording).stream()
+                .collect(Collectors.groupingBy(event -> event.getEventType().getName()));
+            List<RecordedEvent> operations = events.get("co.micro.widget.Operation");
+            List<RecordedEvent> shifts = events.get("co.micro.widget.Shift");
+            RecordedEvent scan = events.get("co.micro.widget.Scan").get(0);
+
+            assertTrue(events.keySet().stream().allMatch(name -> name.startsWith("co.micro.widget.")));
+
+            assertEquals(operations.stream()
+                .map(event -> event.getString("operation"))
+                .collect(Collectors.toList()), List.of("create", "create", "list-cursor"));
+            assertEquals(shifts.stream()
+                .map(event -> event.getInt("shifted"))
+                .collect(Collectors.toList()), List.of(0, 1));
+            assertEquals(shifts.get(1).getString("widgetId"), operations.get(1).getString("widgetId"));
+            assertEquals(scan.getInt("matched"), 1);
+            assertFalse(scan.getBoolean("fullScan"));
+            assertFalse(events.containsKey("co.micro.widget.Query"));
+        } finally {
+            Files.delete(recording);
+        }
+
+        mockMvc.perform(MockMvcRequestBuilders
+                .delete("/actuator/jfr"))
+            .andExpect(status().is2xxSuccessful());
+        mockMvc.perform(MockMvcRequestBuilders
+                .get("/actuator/jfr"))
+            .andExpect(status().isNotFound());
+    }
+
     private MvcResult createWidget(CreateWidget request) throws Exception {
         return mockMvc.perform(MockMvcRequestBuilders
                 .post(URL)
@@ -180,6 +465,15 @@ public class WidgetManagerServiceIT {
             .andReturn();
     }
 
+    private MvcResult applyBatch(WidgetBatch request) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders
+                .post(URL + "/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(objToJsonString(request)))
+            .andExpect(status().isOk())
+            .andReturn();
+    }
+
     private MvcResult updateWidget(UpdateWidget request) throws Exception {
         return mockMvc.perform(MockMvcRequestBuilders
                 .patch(getUrlWithId(request.getWidgetId()))
@@ -232,10 +526,60 @@ public class WidgetManagerServiceIT {
         return Arrays.asList(objectMapper.readValue(json, Widget[].class));
     }
 
+    private MvcResult getWidgetsAfter(String cursor, int limit) throws Exception {
+        MockHttpServletRequestBuilder request = MockMvcRequestBuilders
+            .get(URL)
+            .param("limit", String.valueOf(limit));
+
+        if (cursor != null) {
+            request.param("cursor", cursor);
+        }
+
+        return mockMvc.perform(request)
+            .andExpect(status().isOk())
+            .andReturn();
+    }
+
+    private JsonNode getChanges(long since) throws Exception {
+        return objectMapper.readTree(mockMvc.perform(MockMvcRequestBuilders
+                .get(URL + "/changes")
+                .param("since", String.valueOf(since)))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsString());
+    }
+
+    private static String awaitEvents(MvcResult stream, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        String events = stream.getResponse().getContentAsString();
+
+        while (!events.contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            events = stream.getResponse().getContentAsString();
+        }
+
+        return events;
+    }
+
+    private List<String> getWidgetNames(MvcResult result) throws Exception {
+        return Arrays.stream(objectMapper.readValue(result.getResponse().getContentAsString(), Widget[].class))
+            .map(Widget::getWidgetName)
+            .collect(Collectors.toList());
+    }
+
     private String objToJsonString(Object data) throws JsonProcessingException {
         return objectMapper.writeValueAsString(data);
     }
 
+    private static double getMetric(String metrics, String name, String... tags) {
+        return Arrays.stream(metrics.split("\n"))
+            .filter(line -> line.startsWith(name + "{") || line.startsWith(name + " "))
+            .filter(line -> Arrays.stream(tags).allMatch(line::contains))
+            .mapToDouble(line -> Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)))
+            .sum();
+    }
+
     private static String getUrlWithId(UUID widgetId) {
         return String.format("%s/%s", URL, widgetId);
     }
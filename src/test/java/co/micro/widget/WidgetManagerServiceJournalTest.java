@@ -0,0 +1,71 @@
+package co.micro.widget;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import co.micro.widget.entity.Widget;
+import co.micro.widget.repository.WidgetJournalManagerRepository;
+import co.micro.widget.repository.WidgetRepository;
+import co.micro.widget.service.WidgetService;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import static co.micro.widget.helpers.WidgetHelper.getCreateRequest;
+import static co.micro.widget.helpers.WidgetHelper.getUpdateRequest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class WidgetManagerServiceJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverWidgets() throws IOException {
+        String directory = folder.newFolder("journal").getPath();
+        List<Widget> expectedWidgets;
+
+        try (ConfigurableApplicationContext context = start(directory, "always")) {
+            WidgetService widgetManager = context.getBean(WidgetService.class);
+            WidgetRepository widgetRepository = context.getBean(WidgetRepository.class);
+
+            assertTrue(widgetRepository instanceof WidgetJournalManagerRepository);
+
+            UUID widgetId = widgetManager.createWidget(getCreateRequest("Widget_1", 7, 1, 1, 16, 26, UUID.randomUUID())).getWidgetId();
+            UUID deletedId = widgetManager.createWidget(getCreateRequest("Widget_2", 3, 4, 2, 33, 56, UUID.randomUUID())).getWidgetId();
+
+            ((WidgetJournalManagerRepository) widgetRepository).snapshot();
+
+            widgetManager.createWidget(getCreateRequest("Widget_3", 9, 8, 1, 10, 20, UUID.randomUUID()));
+            widgetManager.updateWidget(getUpdateRequest("Widget_4", 1L, 2L, null, null, null, widgetId));
+            widgetManager.deleteWidget(deletedId);
+
+            expectedWidgets = widgetRepository.getWidgets();
+        }
+
+        try (ConfigurableApplicationContext context = start(directory, "never")) {
+            List<Widget> actualWidgets = context.getBean(WidgetRepository.class).getWidgets();
+
+            assertEquals(actualWidgets.size(), 2);
+            assertEquals(actualWidgets, expectedWidgets);
+            assertEquals(actualWidgets.get(1).getWidgetName(), "Widget_4");
+        }
+    }
+
+    private static ConfigurableApplicationContext start(String directory, String fsync) {
+        return new SpringApplicationBuilder(WidgetApplication.class)
+            .web(WebApplicationType.NONE)
+            .run(
+                "--widget.repository=journal",
+                "--widget.journal.dir=" + directory,
+                "--widget.journal.fsync=" + fsync,
+                "--widget.journal.segment-size=256",
+                "--spring.datasource.url=jdbc:h2:mem:journal");
+    }
+}
@@ -0,0 +1,53 @@
+package co.micro.widget;
+
+import java.util.List;
+import java.util.UUID;
+
+import co.micro.widget.entity.Widget;
+import co.micro.widget.repository.WidgetRepository;
+import co.micro.widget.repository.WidgetSnapshotManagerRepository;
+import co.micro.widget.service.WidgetManagerService;
+import co.micro.widget.service.WidgetService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static co.micro.widget.helpers.WidgetHelper.checkWidget;
+import static co.micro.widget.helpers.WidgetHelper.getCreateRequest;
+import static co.micro.widget.helpers.WidgetHelper.getWidget;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "widget.repository=snapshot")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class WidgetManagerServiceSnapshotTest {
+
+    private static final int PAGE = 1;
+
+    @Autowired
+    private WidgetService widgetManager;
+
+    @Autowired
+    private WidgetRepository widgetRepository;
+
+    @Test
+    public void addWidgetWithShift() {
+        widgetManager.createWidget(getCreateRequest("Widget_1", 7, 1, 1, 16, 26, UUID.randomUUID()));
+        widgetManager.createWidget(getCreateRequest("Widget_2", 3, 4, 2, 33, 56, UUID.randomUUID()));
+        widgetManager.createWidget(getCreateRequest("Widget_3", 9, 8, 1, 10, 20, UUID.randomUUID()));
+
+        List<Widget> actualWidgets = widgetManager.getWidgets(
+            PAGE, WidgetManagerService.ROW_LIMIT_DEFAULT, null, null, null, null);
+
+        assertTrue(widgetRepository instanceof WidgetSnapshotManagerRepository);
+        assertEquals(actualWidgets.size(), 3);
+        checkWidget(actualWidgets.get(0), getWidget("Widget_3", 9, 8, 1, 10, 20));
+        checkWidget(actualWidgets.get(1), getWidget("Widget_1", 7, 1, 2, 16, 26));
+        checkWidget(actualWidgets.get(2), getWidget("Widget_2", 3, 4, 3, 33, 56));
+    }
+}
@@ -0,0 +1,201 @@
+package co.micro.widget;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.service.WidgetManagerService;
+import co.micro.widget.service.WidgetService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.dao.DataAccessException;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static co.micro.widget.helpers.WidgetHelper.checkWidget;
+import static co.micro.widget.helpers.WidgetHelper.getCreateRequest;
+import static co.micro.widget.helpers.WidgetHelper.getWidget;
+import static co.micro.widget.helpers.WidgetHelper.toLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "widget.z-allocation=sparse")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class WidgetManagerServiceSparseTest {
+
+    private static final int PAGE = 1;
+    private static final UUID WIDGET_ID = UUID.randomUUID();
+
+    @Autowired
+    private WidgetService widgetManager;
+
+    @Test
+    public void createWidgetAtFront() {
+        widgetManager.createWidget(getCreateRequest("Widget_1", toLong(7), toLong(1), null, toLong(16), toLong(26), UUID.randomUUID()));
+        widgetManager.createWidget(getCreateRequest("Widget_2", toLong(3), toLong(4), null, toLong(33), toLong(56), UUID.randomUUID()));
+        Widget created = widgetManager.createWidget(getCreateRequest("Widget_3", 5, 7, 0, 78, 31, WIDGET_ID));
+
+        List<Widget> actualWidgets = getWidgets();
+
+        assertEquals(created.getCoordinateZ(), Long.valueOf(0));
+        assertEquals(actualWidgets.size(), 3);
+        checkWidget(actualWidgets.get(0), getWidget("Widget_3", 5, 7, 0, 78, 31));
+        checkWidget(actualWidgets.get(1), getWidget("Widget_1", 7, 1, 1, 16, 26));
+        checkWidget(actualWidgets.get(2), getWidget("Widget_2", 3, 4, 2, 33, 56));
+    }
+
+    @Test
+    public void createWidgetsAtSamePositionRenumbers() {
+        widgetManager.createWidget(getCreateRequest("Widget_0", 0, 0, 0, 1, 1, UUID.randomUUID()));
+        widgetManager.createWidget(getCreateRequest("Widget_1", 0, 0, 1, 1, 1, UUID.randomUUID()));
+        for (int i = 0; i < 40; i++) {
+            widgetManager.createWidget(getCreateRequest("Widget_" + (i + 2), 0, 0, 1, 1, 1, UUID.randomUUID()));
+        }
+
+        List<Widget> actualWidgets = widgetManager.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_MAX, null, null, null, null);
+
+        assertEquals(actualWidgets.size(), 42);
+        assertEquals(actualWidgets.get(0).getWidgetName(), "Widget_0");
+        assertEquals(actualWidgets.get(1).getWidgetName(), "Widget_41");
+        assertEquals(actualWidgets.get(40).getWidgetName(), "Widget_2");
+        assertEquals(actualWidgets.get(41).getWidgetName(), "Widget_1");
+        for (int i = 0; i < actualWidgets.size(); i++) {
+            assertEquals(actualWidgets.get(i).getCoordinateZ(), Long.valueOf(i));
+        }
+    }
+
+    @Test
+    public void updateWidgetMovesUpAndDown() {
+        widgetManager.createWidget(getCreateRequest("Widget_1", 1, 1, 0, 1, 1, WIDGET_ID));
+        widgetManager.createWidget(getCreateRequest("Widget_2", 1, 1, 1, 1, 1, UUID.randomUUID()));
+        widgetManager.createWidget(getCreateRequest("Widget_3", 1, 1, 2, 1, 1, UUID.randomUUID()));
+
+        Widget updated = widgetManager.updateWidget(setCoordinateZ(1));
+
+        assertEquals(updated.getCoordinateZ(), Long.valueOf(1));
+        assertEquals(getWidgetNames(), List.of("Widget_2", "Widget_1", "Widget_3"));
+
+        widgetManager.updateWidget(setCoordinateZ(5));
+        assertEquals(getWidgetNames(), List.of("Widget_2", "Widget_3", "Widget_1"));
+        assertEquals(widgetManager.getWidget(WIDGET_ID).getCoordinateZ(), Long.valueOf(2));
+
+        widgetManager.updateWidget(setCoordinateZ(0));
+        assertEquals(getWidgetNames(), List.of("Widget_1", "Widget_2", "Widget_3"));
+        assertEquals(widgetManager.getWidget(WIDGET_ID).getCoordinateZ(), Long.valueOf(0));
+    }
+
+    @Test
+    public void deleteWidgetCompactsPositions() {
+        widgetManager.createWidget(getCreateRequest("Widget_1", 1, 1, 0, 1, 1, WIDGET_ID));
+        widgetManager.createWidget(getCreateRequest("Widget_2", 1, 1, 1, 1, 1, UUID.randomUUID()));
+
+        widgetManager.deleteWidget(WIDGET_ID);
+        List<Widget> actualWidgets = getWidgets();
+
+        assertEquals(actualWidgets.size(), 1);
+        checkWidget(actualWidgets.get(0), getWidget("Widget_2", 1, 1, 0, 1, 1));
+    }
+
+    /**
+     * Widgets listed through a filter are ranked one by one; their Z is their position in the whole stack.
+     */
+    @Test
+    public void rankFilteredWidgets() {
+        Random random = new Random(3);
+        List<UUID> widgetIds = new ArrayList<>();
+
+        for (int i = 0; i < 60; i++) {
+            widgetIds.add(widgetManager.createWidget(
+                getCreateRequest("Widget_" + i, 1, 1, random.nextInt(i + 1), 1, 1 + i % 2, UUID.randomUUID())).getWidgetId());
+        }
+        for (int i = 0; i < 20; i++) {
+            widgetManager.updateWidget(UpdateWidget.builder()
+                .widgetId(widgetIds.get(random.nextInt(widgetIds.size())))
+                .coordinateZ((long) random.nextInt(widgetIds.size()))
+                .build());
+            widgetManager.deleteWidget(widgetIds.remove(random.nextInt(widgetIds.size())));
+        }
+
+        List<UUID> stack = widgetManager.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_MAX, null, null, null, null).stream()
+            .map(Widget::getWidgetId)
+            .collect(Collectors.toList());
+
+        assertEquals(stack.size(), 40);
+        for (Widget widget : widgetManager.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_MAX, null, null, 2L, null)) {
+            assertEquals(widget.getCoordinateZ(), Long.valueOf(stack.indexOf(widget.getWidgetId())));
+            assertEquals(widgetManager.getWidget(widget.getWidgetId()).getCoordinateZ(), widget.getCoordinateZ());
+        }
+    }
+
+    /**
+     * The create reuses a stored id, so it fails in H2 once the delete has been written; the delete is rolled back.
+     */
+    @Test
+    public void applyBatchRollsBackInH2() {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(WidgetApplication.class)
+            .web(WebApplicationType.NONE)
+            .run("--widget.z-allocation=sparse", "--widget.repository=h2")) {
+            WidgetService widgetService = context.getBean(WidgetService.class);
+            UUID deletedId = widgetService.createWidget(getCreateRequest("Widget_1", 1, 1, 0, 1, 1, UUID.randomUUID())).getWidgetId();
+            widgetService.createWidget(getCreateRequest("Widget_2", 1, 1, 1, 1, 1, WIDGET_ID));
+
+            try {
+                widgetService.applyBatch(WidgetBatch.builder()
+                    .create(List.of(getCreateRequest("Widget_3", 1, 1, 0, 1, 1, WIDGET_ID)))
+                    .delete(List.of(deletedId))
+                    .build());
+                fail();
+            } catch (DataAccessException e) {
+                assertEquals(widgetService.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_DEFAULT, null, null, null, null).stream()
+                    .map(Widget::getWidgetName)
+                    .collect(Collectors.toList()), List.of("Widget_1", "Widget_2"));
+            }
+
+            List<Widget> widgets = widgetService.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_DEFAULT, null, null, null, null);
+
+            assertEquals(widgets.stream().map(Widget::getCoordinateZ).collect(Collectors.toList()), List.of(0L, 1L));
+
+            widgetService.applyBatch(WidgetBatch.builder()
+                .create(List.of(
+                    getCreateRequest("Widget_3", 1, 1, 0, 1, 1, UUID.randomUUID()),
+                    getCreateRequest("Widget_4", 1, 1, 0, 1, 1, UUID.randomUUID()),
+                    getCreateRequest("Widget_5", 1, 1, 0, 1, 1, UUID.randomUUID())))
+                .build());
+            widgets = widgetService.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_DEFAULT, null, null, null, null);
+
+            assertEquals(widgets.stream().map(Widget::getWidgetName).collect(Collectors.toList()),
+                List.of("Widget_5", "Widget_4", "Widget_3", "Widget_1", "Widget_2"));
+            assertEquals(widgets.stream().map(Widget::getCoordinateZ).collect(Collectors.toList()), List.of(0L, 1L, 2L, 3L, 4L));
+        }
+    }
+
+    private List<Widget> getWidgets() {
+        return widgetManager.getWidgets(
+            PAGE, WidgetManagerService.ROW_LIMIT_DEFAULT, null, null, null, null);
+    }
+
+    private List<String> getWidgetNames() {
+        return getWidgets().stream()
+            .map(Widget::getWidgetName)
+            .collect(Collectors.toList());
+    }
+
+    private static UpdateWidget setCoordinateZ(long z) {
+        return UpdateWidget.builder()
+            .widgetId(WIDGET_ID)
+            .coordinateZ(z)
+            .build();
+    }
+}
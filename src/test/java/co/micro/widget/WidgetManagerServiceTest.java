@@ -1,11 +1,21 @@
 package co.micro.widget;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import co.micro.widget.entity.CreateWidget;
 import co.micro.widget.entity.UpdateWidget;
 import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetChanges;
 import co.micro.widget.service.WidgetManagerService;
 import co.micro.widget.service.WidgetService;
 import org.junit.Test;
@@ -26,7 +36,7 @@ import static org.junit.Assert.assertTrue;
 
 
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = "widget.change-log.capacity=512")
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class WidgetManagerServiceTest {
 
@@ -340,6 +350,106 @@ public class WidgetManagerServiceTest {
         );
     }
 
+    @Test
+    public void concurrentUpdatesWithoutCoordinateZ() throws Exception {
+        List<UUID> widgetIds = IntStream.range(0, 20)
+            .mapToObj(i -> createWidget(getCreateRequest("Widget_" + i, i, i, i, 10, 10, UUID.randomUUID())).getWidgetId())
+            .collect(Collectors.toList());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < widgetIds.size(); i++) {
+                UUID widgetId = widgetIds.get(i);
+                long offset = i;
+                futures.add(executor.submit(() -> {
+                    for (long x = offset; x < 400; x += widgetIds.size()) {
+                        updateWidget(getUpdateRequest(null, x, x * 300, null, null, null, widgetId));
+                    }
+                }));
+                futures.add(executor.submit(() -> widgetManager.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_MAX, 500L, 120_000L, null, null)));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Widget> actualWidgets = widgetManager.getWidgets(PAGE, WidgetManagerService.ROW_LIMIT_MAX, null, null, null, null);
+
+        assertEquals(actualWidgets.size(), widgetIds.size());
+        for (int i = 0; i < actualWidgets.size(); i++) {
+            Widget widget = actualWidgets.get(i);
+            assertEquals(widget.getCoordinateZ(), toLong(i));
+            assertEquals(widget.getCoordinateX(), toLong(380 + i));
+            assertEquals(widgetManager.getWidgets(
+                PAGE, WidgetManagerService.ROW_LIMIT_MAX, widget.getCoordinateX(), widget.getCoordinateY(), null, null).size(), i + 1);
+        }
+    }
+
+    @Test
+    public void getChangesAfterShiftLongerThanChangeLog() {
+        createWidgets(IntStream.range(0, 600)
+            .mapToObj(i -> getCreateRequest("Widget_" + i, i, i, i, 10, 10, UUID.randomUUID()))
+            .collect(Collectors.toList()));
+        long since = widgetManager.getVersion();
+
+        createWidget(getCreateRequest("Widget_new", 1, 1, 0, 10, 10, WIDGET_ID));
+        Optional<WidgetChanges> changes = widgetManager.getChanges(since);
+
+        assertTrue(changes.isPresent());
+        assertEquals(changes.get().getWidgets().get(0).getWidgetId(), WIDGET_ID);
+        assertEquals(changes.get().getWidgets().stream().map(Widget::getCoordinateZ).collect(Collectors.toList()),
+            LongStream.rangeClosed(0, 600).boxed().collect(Collectors.toList()));
+        assertEquals(widgetManager.getChanges(changes.get().getRevision()).get().getWidgets().size(), 0);
+    }
+
+    @Test
+    public void getChangesOfConcurrentWrites() throws Exception {
+        List<UUID> widgetIds = IntStream.range(0, 20)
+            .mapToObj(i -> createWidget(getCreateRequest("Widget_" + i, i, i, i, 10, 10, UUID.randomUUID())).getWidgetId())
+            .collect(Collectors.toList());
+        long since = widgetManager.getVersion();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (UUID widgetId : widgetIds) {
+                futures.add(executor.submit(() -> {
+                    for (long x = 0; x < 20; x++) {
+                        updateWidget(getUpdateRequest(null, x, x, null, null, null, widgetId));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Optional<WidgetChanges> changes = widgetManager.getChanges(since);
+
+        assertTrue(changes.isPresent());
+        assertEquals(changes.get().getWidgets().stream().map(Widget::getWidgetId).collect(Collectors.toList()), widgetIds);
+        assertTrue(changes.get().getWidgets().stream().allMatch(widget -> widget.getCoordinateX() == 19));
+        assertFalse(widgetManager.getChanges(since ^ 1L << 62).isPresent());
+    }
+
+    @Test
+    public void getChangesSinceRevisionReadAsDouble() {
+        createWidget(getCreateRequest("Widget_1", 1, 1, 1, 10, 10, WIDGET_ID));
+        long since = (long) (double) widgetManager.getVersion();
+
+        updateWidget(getUpdateRequest("Widget_2", 2L, 2L, null, null, null, WIDGET_ID));
+        Optional<WidgetChanges> changes = widgetManager.getChanges(since);
+
+        assertTrue(changes.isPresent());
+        assertEquals(changes.get().getWidgets().get(0).getWidgetName(), "Widget_2");
+        assertEquals((long) (double) changes.get().getRevision(), changes.get().getRevision().longValue());
+    }
+
     private Widget createWidget(CreateWidget widget) {
         return widgetManager.createWidget(widget);
     }
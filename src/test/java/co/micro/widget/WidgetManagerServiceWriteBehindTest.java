@@ -0,0 +1,127 @@
+package co.micro.widget;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.repository.WidgetH2ManagerRepository;
+import co.micro.widget.repository.WidgetRepository;
+import co.micro.widget.repository.WidgetWriteBehindManagerRepository;
+import co.micro.widget.service.WidgetService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.dao.DataAccessException;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static co.micro.widget.helpers.WidgetHelper.getCreateRequest;
+import static co.micro.widget.helpers.WidgetHelper.getUpdateRequest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"widget.repository=write-behind", "widget.write-behind.flush-interval-ms=60000"})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class WidgetManagerServiceWriteBehindTest {
+
+    @Autowired
+    private WidgetService widgetManager;
+
+    @Autowired
+    private WidgetRepository widgetRepository;
+
+    @Autowired
+    private WidgetWriteBehindManagerRepository writeBehindRepository;
+
+    @Autowired
+    private WidgetH2ManagerRepository h2Repository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    public void flushWidgets() {
+        UUID widgetId = widgetManager.createWidget(getCreateRequest("Widget_1", 7, 1, 1, 16, 26, UUID.randomUUID())).getWidgetId();
+        UUID deletedId = widgetManager.createWidget(getCreateRequest("Widget_2", 3, 4, 2, 33, 56, UUID.randomUUID())).getWidgetId();
+        widgetManager.createWidget(getCreateRequest("Widget_3", 9, 8, 1, 10, 20, UUID.randomUUID()));
+
+        assertTrue(widgetRepository instanceof WidgetWriteBehindManagerRepository);
+        assertTrue(h2Repository.getWidgets().isEmpty());
+
+        writeBehindRepository.flush();
+
+        assertEquals(getWidgets(h2Repository), getWidgets(widgetRepository));
+
+        widgetManager.updateWidget(getUpdateRequest("Widget_4", 1L, 2L, 5L, null, null, widgetId));
+        widgetManager.deleteWidget(deletedId);
+        widgetManager.createWidget(getCreateRequest("Widget_5", 9, 8, 5, 10, 20, UUID.randomUUID()));
+        writeBehindRepository.flush();
+
+        assertEquals(getWidgets(h2Repository), getWidgets(widgetRepository));
+        assertEquals(h2Repository.getWidgets().size(), 3);
+        assertEquals(meterRegistry.get("widget.repository").tag("method", "saveWidgets").timer().count(), 2);
+    }
+
+    @Test
+    public void keepWidgetsOnFailedFlush() {
+        Widget widget = widgetManager.createWidget(getCreateRequest("Widget_1", 7, 1, 1, 16, 26, UUID.randomUUID()));
+        Widget other = widgetManager.createWidget(getCreateRequest("Widget_2", 3, 4, 2, 33, 56, UUID.randomUUID()));
+        writeBehindRepository.flush();
+
+        try {
+            h2Repository.saveWidgets(List.of(widget.getWidgetId()), List.of(other.withWidgetName(null)));
+            fail();
+        } catch (DataAccessException e) {
+            assertEquals(getWidgets(h2Repository), getWidgets(widgetRepository));
+        }
+    }
+
+    @Test
+    public void loadWidgetsOnStartup() {
+        String url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        List<Widget> expectedWidgets;
+
+        try (ConfigurableApplicationContext context = start(url)) {
+            WidgetService widgetService = context.getBean(WidgetService.class);
+
+            widgetService.createWidget(getCreateRequest("Widget_1", 7, 1, 1, 16, 26, UUID.randomUUID()));
+            widgetService.createWidget(getCreateRequest("Widget_2", 3, 4, 1, 33, 56, UUID.randomUUID()));
+            expectedWidgets = context.getBean(WidgetRepository.class).getWidgets();
+        }
+
+        try (ConfigurableApplicationContext context = start(url)) {
+            WidgetRepository repository = context.getBean(WidgetRepository.class);
+
+            assertEquals(repository.getWidgets(), expectedWidgets);
+            assertEquals(repository.getWidgetMaxByCoordinateZ().map(Widget::getWidgetName), Optional.of("Widget_1"));
+            assertEquals(repository.findInArea(WidgetFilter.builder().maxCoordinateX(5L).build()).size(), 1);
+        }
+    }
+
+    private static List<Widget> getWidgets(WidgetRepository repository) {
+        return repository.getWidgets().stream()
+            .sorted(Comparator.comparingLong(Widget::getCoordinateZ))
+            .collect(Collectors.toList());
+    }
+
+    private static ConfigurableApplicationContext start(String url) {
+        return new SpringApplicationBuilder(WidgetApplication.class)
+            .web(WebApplicationType.NONE)
+            .run(
+                "--widget.repository=write-behind",
+                "--spring.datasource.url=" + url,
+                "--spring.datasource.data=classpath:widgets.sql");
+    }
+}
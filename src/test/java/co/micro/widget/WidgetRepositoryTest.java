@@ -0,0 +1,529 @@
+package co.micro.widget;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import co.micro.widget.entity.CreateWidget;
+import co.micro.widget.entity.UpdateWidget;
+import co.micro.widget.entity.Widget;
+import co.micro.widget.entity.WidgetBatch;
+import co.micro.widget.entity.WidgetFilter;
+import co.micro.widget.exception.WidgetException;
+import co.micro.widget.repository.WidgetChangeListener;
+import co.micro.widget.repository.WidgetColumnarManagerRepository;
+import co.micro.widget.repository.WidgetH2ManagerRepository;
+import co.micro.widget.repository.WidgetInMemoryManagerRepository;
+import co.micro.widget.repository.WidgetRepository;
+import co.micro.widget.repository.WidgetSnapshotManagerRepository;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.rules.SpringClassRule;
+import org.springframework.test.context.junit4.rules.SpringMethodRule;
+
+import static co.micro.widget.helpers.WidgetHelper.getCreateRequest;
+import static co.micro.widget.helpers.WidgetHelper.getUpdateRequest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Runs against every repository, so a new store adds one parameter; tests of a single store are skipped for the others.
+ */
+@RunWith(Parameterized.class)
+@SpringBootTest
+public class WidgetRepositoryTest {
+
+    @ClassRule
+    public static final SpringClassRule SPRING_CLASS_RULE = new SpringClassRule();
+
+    @Rule
+    public final SpringMethodRule springMethodRule = new SpringMethodRule();
+
+    private static final UUID WIDGET_ID = UUID.randomUUID();
+
+    @Parameterized.Parameter
+    public String name;
+
+    @Parameterized.Parameter(1)
+    public Function<WidgetRepositoryTest, WidgetRepository> factory;
+
+    @Autowired
+    private WidgetH2ManagerRepository h2Repository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private WidgetRepository repository;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> repositories() {
+        return List.of(
+            repository("memory", test -> new WidgetInMemoryManagerRepository()),
+            repository("h2", test -> test.h2Repository),
+            repository("snapshot", test -> new WidgetSnapshotManagerRepository()),
+            repository("columnar", test -> new WidgetColumnarManagerRepository()));
+    }
+
+    /**
+     * The H2 table is shared by the parameters and emptied before each test.
+     */
+    @Before
+    public void setUp() {
+        jdbcTemplate.update("DELETE FROM widgets");
+        repository = factory.apply(this);
+    }
+
+    /**
+     * Writes return the stored state; an update without coordinate Z keeps the stored one.
+     */
+    @Test
+    public void updateWidget() {
+        CreateWidget request = getCreateRequest("Widget_3", 1, 2, 3, 4, 5, WIDGET_ID).withCreatedAt(10L).withUpdatedAt(10L);
+
+        assertEquals(repository.createWidget(request), repository.getWidget(WIDGET_ID).get());
+
+        Widget updated = repository.updateWidget(getUpdateRequest("Widget_4", 6L, 7L, null, 8L, 9L, WIDGET_ID).withUpdatedAt(20L));
+
+        assertEquals(updated, repository.getWidget(WIDGET_ID).get());
+        assertEquals(updated, Widget.builder()
+            .widgetId(WIDGET_ID)
+            .widgetName("Widget_4")
+            .coordinateX(6L)
+            .coordinateY(7L)
+            .coordinateZ(3L)
+            .height(8L)
+            .width(9L)
+            .createdAt(10L)
+            .updatedAt(20L)
+            .build());
+    }
+
+    @Test
+    public void shiftCoordinateZ() {
+        createWidgets(repository, 1, 2, 3, 5, 7);
+
+        assertEquals(repository.shiftCoordinateZ(2L), 2);
+        assertEquals(getCoordinatesZ(repository), List.of(1L, 3L, 4L, 5L, 7L));
+
+        assertEquals(repository.shiftCoordinateZ(6L), 0);
+        assertEquals(getCoordinatesZ(repository), List.of(1L, 3L, 4L, 5L, 7L));
+    }
+
+    @Test
+    public void shiftCoordinateZWithExcludedWidget() {
+        createWidgets(repository, 1, 2, 3, 5);
+        createWidget(repository, 4, WIDGET_ID);
+
+        assertEquals(repository.shiftCoordinateZ(1L, WIDGET_ID), 3);
+        assertEquals(repository.getWidget(WIDGET_ID).get().getCoordinateZ(), Long.valueOf(4));
+        assertEquals(repository.getWidgets(5L).size(), 1);
+        assertEquals(repository.getWidgets(1L).stream()
+            .filter(widget -> !WIDGET_ID.equals(widget.getWidgetId()))
+            .map(Widget::getCoordinateZ)
+            .collect(Collectors.toList()), List.of(2L, 3L, 4L, 5L));
+    }
+
+    @Test
+    public void renumberCoordinateZ() {
+        createWidgets(repository, -7, 3, 4, 12);
+
+        repository.renumberCoordinateZ(10);
+
+        assertEquals(getCoordinatesZ(repository), List.of(0L, 10L, 20L, 30L));
+        assertEquals(repository.getWidgets(1, 2).stream()
+            .map(Widget::getWidgetName)
+            .collect(Collectors.toList()), List.of("Widget_3", "Widget_4"));
+        assertEquals(repository.countWidgetsBelow(20L), 2);
+    }
+
+    @Test
+    public void findInArea() {
+        createWidget(repository, getCreateRequest("Widget_1", 50, 50, 6, 100, 100, UUID.randomUUID()));
+        createWidget(repository, getCreateRequest("Widget_2", 700, 20, 5, 100, 100, UUID.randomUUID()));
+        createWidget(repository, getCreateRequest("Widget_3", 300, 900, 4, 100, 100, UUID.randomUUID()));
+        createWidget(repository, getCreateRequest("Widget_4", -10, 50, 3, 100, 100, UUID.randomUUID()));
+        createWidget(repository, getCreateRequest("Widget_5", 650, 400, 2, 10, 10, UUID.randomUUID()));
+        createWidget(repository, getCreateRequest("Widget_6", 260, 260, 1, 100, 100, UUID.randomUUID()));
+
+        assertEquals(findInArea(repository, WidgetFilter.builder().maxCoordinateX(700L).maxCoordinateY(500L).build()),
+            List.of("Widget_6", "Widget_5", "Widget_2", "Widget_1"));
+        assertEquals(findInArea(repository, WidgetFilter.builder().maxCoordinateX(700L).width(100L).build()),
+            List.of("Widget_6", "Widget_3", "Widget_1"));
+        assertEquals(findInArea(repository, WidgetFilter.builder().maxCoordinateY(300L).height(100L).build()),
+            List.of("Widget_4", "Widget_2", "Widget_1"));
+        assertEquals(findInArea(repository, WidgetFilter.builder().maxCoordinateX(-1L).build()), List.of());
+        assertEquals(findInArea(repository, WidgetFilter.builder().width(10L).build()), List.of("Widget_5"));
+        assertEquals(repository.findInArea(WidgetFilter.builder().maxCoordinateX(700L).build(), 1, 2).stream()
+            .map(Widget::getWidgetName)
+            .collect(Collectors.toList()), List.of("Widget_5", "Widget_3"));
+    }
+
+    @Test
+    public void findInAreaAfter() {
+        createWidgets(repository, 9, 2, 5, 7, 1);
+
+        assertEquals(repository.findInAreaAfter(WidgetFilter.builder().build(), null, 2).stream()
+            .map(Widget::getCoordinateZ)
+            .collect(Collectors.toList()), List.of(1L, 2L));
+        assertEquals(repository.findInAreaAfter(WidgetFilter.builder().build(), 2L, 2).stream()
+            .map(Widget::getCoordinateZ)
+            .collect(Collectors.toList()), List.of(5L, 7L));
+        assertEquals(repository.findInAreaAfter(WidgetFilter.builder().maxCoordinateX(10L).build(), 5L, 5).stream()
+            .map(Widget::getCoordinateZ)
+            .collect(Collectors.toList()), List.of(7L, 9L));
+    }
+
+    /**
+     * Creates at the bottom, on top and moves of one widget race with each other without any outside locking.
+     */
+    @Test
+    public void createWidgetAtConcurrently() throws Exception {
+        assumeTrue(repository.isThreadSafe());
+
+        createWidget(repository, 0, WIDGET_ID);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                Long z = i % 2 == 0 ? Long.valueOf(0) : null;
+                Long x = Long.valueOf(i);
+                CreateWidget request = getCreateRequest("Widget", x, x, z, x, x, UUID.randomUUID());
+                futures.add(executor.submit(() -> repository.createWidgetAt(request)));
+                futures.add(executor.submit(() -> repository.updateWidget(getUpdateRequest("Widget_0", x, x, null, x, x, WIDGET_ID))));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(getCoordinatesZ(repository), LongStream.rangeClosed(0, 200).boxed().collect(Collectors.toList()));
+        assertEquals(repository.getWidgets().size(), 201);
+        assertEquals(repository.getWidgets(Long.MIN_VALUE).stream()
+            .filter(widget -> WIDGET_ID.equals(widget.getWidgetId()))
+            .count(), 1L);
+    }
+
+    /**
+     * A shift is reported as the range of Z it moved, once, along with the written widget. Deleting a missing
+     * widget reports nothing.
+     */
+    @Test
+    public void reportChanges() {
+        UUID shiftedId = UUID.randomUUID();
+        UUID deletedId = UUID.randomUUID();
+        createWidget(repository, 1, shiftedId);
+        createWidget(repository, 2, deletedId);
+        createWidgets(repository, 5);
+        List<Collection<UUID>> changed = new ArrayList<>();
+        List<List<Long>> moved = new ArrayList<>();
+
+        repository.addChangeListener(new WidgetChangeListener() {
+            @Override
+            public void changed(Collection<UUID> widgetIds) {
+                changed.add(widgetIds);
+            }
+
+            @Override
+            public void moved(long fromZ, long toZ) {
+                moved.add(List.of(fromZ, toZ));
+            }
+        });
+        repository.createWidgetAt(getCreateRequest("Widget_new", 1L, 1L, 1L, 1L, 1L, WIDGET_ID).withCreatedAt(0L).withUpdatedAt(0L));
+
+        assertEquals(changed, List.of(List.of(WIDGET_ID)));
+        assertEquals(moved, List.of(List.of(2L, 3L)));
+
+        changed.clear();
+        moved.clear();
+        repository.applyBatch(WidgetBatch.builder()
+            .create(List.of())
+            .update(Map.of())
+            .delete(List.of(deletedId))
+            .build());
+
+        assertTrue(changed.stream().anyMatch(widgetIds -> widgetIds.contains(deletedId)));
+        assertTrue(moved.isEmpty());
+
+        changed.clear();
+        try {
+            repository.deleteWidget(deletedId);
+        } catch (WidgetException e) {
+            assertTrue(repository instanceof WidgetH2ManagerRepository);
+        }
+
+        assertTrue(changed.isEmpty());
+    }
+
+    /**
+     * Deleted and moved widgets vacate their slots first, then moves and creates shift the runs they land in.
+     */
+    @Test
+    public void applyBatch() {
+        UUID movedId = UUID.randomUUID();
+        UUID updatedId = UUID.randomUUID();
+        UUID deletedId = UUID.randomUUID();
+        createWidget(repository, 0, movedId);
+        createWidget(repository, 1, updatedId);
+        createWidget(repository, 2, deletedId);
+        createWidgets(repository, 5, 6);
+
+        List<Widget> widgets = repository.applyBatch(WidgetBatch.builder()
+            .create(List.of(
+                getCreateRequest("Widget_new_1", 1L, 1L, 1L, 1L, 1L, UUID.randomUUID()).withCreatedAt(0L).withUpdatedAt(0L),
+                getCreateRequest("Widget_new_2", 1L, 1L, null, 1L, 1L, UUID.randomUUID()).withCreatedAt(0L).withUpdatedAt(0L)))
+            .update(Map.of(
+                movedId, getUpdateRequest(null, null, null, 5L, null, null, movedId),
+                updatedId, getUpdateRequest(null, 7L, null, null, null, null, updatedId)))
+            .delete(List.of(deletedId))
+            .build());
+
+        assertEquals(widgets.size(), 4);
+        assertEquals(repository.getWidget(updatedId).get().getCoordinateX(), Long.valueOf(7));
+        assertEquals(repository.getWidget(movedId).get().getCoordinateX(), Long.valueOf(1));
+        assertEquals(repository.getWidgets(Long.MIN_VALUE).stream()
+            .map(widget -> widget.getWidgetName() + ":" + widget.getCoordinateZ())
+            .collect(Collectors.toList()),
+            List.of("Widget_new_1:1", "Widget_1:2", "Widget_0:5", "Widget_5:6", "Widget_6:7", "Widget_new_2:8"));
+
+        try {
+            repository.applyBatch(WidgetBatch.builder()
+                .create(List.of(getCreateRequest("Widget_new_3", 1L, 1L, 0L, 1L, 1L, UUID.randomUUID()).withCreatedAt(0L).withUpdatedAt(0L)))
+                .delete(List.of(deletedId))
+                .build());
+        } catch (WidgetException e) {
+            assertEquals(repository.getWidgets().size(), 6);
+            return;
+        }
+        throw new AssertionError("missing widget accepted");
+    }
+
+    /**
+     * H2 plans a batch over the rows it reaches only; the outcome matches planning over the whole stack.
+     */
+    @Test
+    public void applyBatchH2LikeInMemory() {
+        assumeTrue(repository instanceof WidgetH2ManagerRepository);
+
+        WidgetRepository inMemoryRepository = new WidgetInMemoryManagerRepository();
+        Random random = new Random(11);
+        createWidgets(inMemoryRepository, 0, 1, 2, 4, 5, 9, 12, 13);
+        createWidgets(repository, inMemoryRepository.getWidgets());
+
+        for (int i = 0; i < 50; i++) {
+            long round = i;
+            List<UUID> widgetIds = inMemoryRepository.getWidgets().stream()
+                .map(Widget::getWidgetId)
+                .collect(Collectors.toList());
+            Collections.shuffle(widgetIds, random);
+            Map<UUID, UpdateWidget> updates = new HashMap<>();
+            widgetIds.stream().skip(1).limit(random.nextInt(3)).forEach(widgetId ->
+                updates.put(widgetId, getUpdateRequest(null, round, null, random.nextBoolean() ? null : (long) random.nextInt(16), null, null, widgetId)));
+            WidgetBatch batch = WidgetBatch.builder()
+                .create(LongStream.range(0, random.nextInt(3))
+                    .mapToObj(n -> getCreateRequest("Widget_" + round + "_" + n, 1L, 1L, null, 1L, 1L, UUID.randomUUID())
+                        .withCoordinateZ(random.nextBoolean() ? null : (long) random.nextInt(16))
+                        .withCreatedAt(0L)
+                        .withUpdatedAt(0L))
+                    .collect(Collectors.toList()))
+                .update(updates)
+                .delete(widgetIds.stream().limit(random.nextInt(2)).collect(Collectors.toList()))
+                .build();
+
+            assertEquals(repository.applyBatch(batch), inMemoryRepository.applyBatch(batch));
+            assertEquals(repository.getWidgets(Long.MIN_VALUE), inMemoryRepository.getWidgets(Long.MIN_VALUE));
+        }
+    }
+
+    /**
+     * Every field mask has its own cached UPDATE; each one sets the fields present and keeps the stored others.
+     */
+    @Test
+    public void updateWidgetEveryFieldMaskH2() {
+        assumeTrue(repository instanceof WidgetH2ManagerRepository);
+
+        Widget expected = repository.createWidget(getCreateRequest("Widget_0", 1, 2, 3, 4, 5, WIDGET_ID).withCreatedAt(0L).withUpdatedAt(0L));
+
+        for (long mask = 0; mask < 1 << 6; mask++) {
+            UpdateWidget request = getUpdateRequest(
+                (mask & 32) != 0 ? "Widget_" + mask : null,
+                (mask & 1) != 0 ? 10 + mask : null,
+                (mask & 2) != 0 ? 20 + mask : null,
+                (mask & 4) != 0 ? 30 + mask : null,
+                (mask & 16) != 0 ? 50 + mask : null,
+                (mask & 8) != 0 ? 40 + mask : null,
+                WIDGET_ID).withUpdatedAt(mask + 1);
+
+            expected = expected
+                .withWidgetName(Objects.requireNonNullElse(request.getWidgetName(), expected.getWidgetName()))
+                .withCoordinateX(Objects.requireNonNullElse(request.getCoordinateX(), expected.getCoordinateX()))
+                .withCoordinateY(Objects.requireNonNullElse(request.getCoordinateY(), expected.getCoordinateY()))
+                .withCoordinateZ(Objects.requireNonNullElse(request.getCoordinateZ(), expected.getCoordinateZ()))
+                .withWidth(Objects.requireNonNullElse(request.getWidth(), expected.getWidth()))
+                .withHeight(Objects.requireNonNullElse(request.getHeight(), expected.getHeight()))
+                .withUpdatedAt(mask + 1);
+
+            assertEquals(repository.updateWidget(request), expected);
+
+            Map<String, Object> row = jdbcTemplate.queryForMap("SELECT * FROM widgets WHERE widget_id = ?", WIDGET_ID.toString());
+
+            assertEquals(row.get("widget_name"), expected.getWidgetName());
+            assertEquals(row.get("coordinate_x"), expected.getCoordinateX());
+            assertEquals(row.get("coordinate_y"), expected.getCoordinateY());
+            assertEquals(row.get("coordinate_z"), expected.getCoordinateZ());
+            assertEquals(row.get("width"), expected.getWidth());
+            assertEquals(row.get("height"), expected.getHeight());
+            assertEquals(row.get("updated_at"), mask + 1);
+            assertEquals(row.get("created_at"), 0L);
+        }
+
+        assertEquals(expected.getWidgetName(), "Widget_63");
+        assertEquals(expected.getCoordinateX(), Long.valueOf(73));
+    }
+
+    /**
+     * A front insert shifts the whole stack; a lock-free reader never sees the stack moved without the new widget.
+     */
+    @Test
+    public void publishShiftWithWriteSnapshot() throws Exception {
+        assumeTrue(repository instanceof WidgetSnapshotManagerRepository);
+
+        createWidget(repository, 0, WIDGET_ID);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    repository.createWidgetAt(getCreateRequest("Widget", 1L, 1L, 0L, 1L, 1L, UUID.randomUUID()).withCreatedAt(0L).withUpdatedAt(0L));
+                }
+            });
+
+            while (!writer.isDone()) {
+                assertEquals(repository.getWidgets(0, 1).get(0).getCoordinateZ(), Long.valueOf(0));
+            }
+            writer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(getCoordinatesZ(repository), LongStream.rangeClosed(0, 2_000).boxed().collect(Collectors.toList()));
+    }
+
+    /**
+     * Storage grows past its initial capacity, and deleted slots are reused without losing the other widgets.
+     */
+    @Test
+    public void growAndReuseSlotsColumnar() {
+        assumeTrue(repository instanceof WidgetColumnarManagerRepository);
+
+        List<UUID> widgetIds = new ArrayList<>();
+
+        for (long z = 0; z < 3000; z++) {
+            UUID widgetId = UUID.randomUUID();
+
+            createWidget(repository, z, widgetId);
+            widgetIds.add(widgetId);
+        }
+        for (int i = 0; i < widgetIds.size(); i += 2) {
+            repository.deleteWidget(widgetIds.get(i));
+        }
+        for (long z = 3000; z < 4500; z++) {
+            createWidget(repository, z, UUID.randomUUID());
+        }
+
+        List<Widget> widgets = repository.getWidgets();
+
+        assertEquals(widgets.size(), 3000);
+        assertEquals(widgets.get(0).getCoordinateZ(), Long.valueOf(1));
+        assertEquals(widgets.get(2999).getCoordinateZ(), Long.valueOf(4499));
+        for (int i = 0; i < widgetIds.size(); i++) {
+            assertEquals(repository.getWidget(widgetIds.get(i)).isPresent(), i % 2 == 1);
+        }
+        assertEquals(repository.countWidgetsBelow(3000L), 1500);
+    }
+
+    /**
+     * Sparse matches run past the in-order walk into the parallel scan; results match the in-memory repository.
+     */
+    @Test
+    public void findInAreaByScanColumnar() {
+        assumeTrue(repository instanceof WidgetColumnarManagerRepository);
+
+        WidgetRepository expectedRepository = new WidgetInMemoryManagerRepository();
+
+        for (long z = 0; z < 40_000; z++) {
+            CreateWidget request = getCreateRequest("Widget_" + z, z % 1000, z % 700, z, 10 + z % 80, 10 + z % 90, UUID.randomUUID());
+
+            createWidget(repository, request);
+            createWidget(expectedRepository, request);
+        }
+
+        WidgetFilter filter = WidgetFilter.builder().maxCoordinateX(500L).width(50L).build();
+
+        assertEquals(repository.findInArea(filter), expectedRepository.findInArea(filter));
+        assertEquals(repository.findInArea(filter, 30, 10), expectedRepository.findInArea(filter, 30, 10));
+        assertEquals(repository.findInAreaAfter(filter, 20_000L, 10), expectedRepository.findInAreaAfter(filter, 20_000L, 10));
+        assertEquals(repository.findInArea(filter).size(), 214);
+    }
+
+    private static List<String> findInArea(WidgetRepository repository, WidgetFilter filter) {
+        return repository.findInArea(filter).stream()
+            .map(Widget::getWidgetName)
+            .collect(Collectors.toList());
+    }
+
+    private static void createWidgets(WidgetRepository repository, long... coordinatesZ) {
+        for (long z : coordinatesZ) {
+            createWidget(repository, z, UUID.randomUUID());
+        }
+    }
+
+    private static void createWidgets(WidgetRepository repository, List<Widget> widgets) {
+        widgets.forEach(widget -> createWidget(repository, getCreateRequest(widget.getWidgetName(), widget.getCoordinateX(),
+            widget.getCoordinateY(), widget.getCoordinateZ(), widget.getHeight(), widget.getWidth(), widget.getWidgetId())));
+    }
+
+    private static void createWidget(WidgetRepository repository, long z, UUID widgetId) {
+        createWidget(repository, getCreateRequest("Widget_" + z, 1, 1, z, 1, 1, widgetId));
+    }
+
+    private static void createWidget(WidgetRepository repository, CreateWidget request) {
+        request.setCreatedAt(0L);
+        request.setUpdatedAt(0L);
+        repository.createWidget(request);
+    }
+
+    private static List<Long> getCoordinatesZ(WidgetRepository repository) {
+        return repository.getWidgets(Long.MIN_VALUE).stream()
+            .map(Widget::getCoordinateZ)
+            .collect(Collectors.toList());
+    }
+
+    private static Object[] repository(String name, Function<WidgetRepositoryTest, WidgetRepository> factory) {
+        return new Object[]{name, factory};
+    }
+}